@@ -0,0 +1,151 @@
+package nachos.filesys;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import nachos.machine.*;
+
+/**
+ * The contents of a directory file: 32-byte entries, each an inode number
+ * (0 for an unused entry) followed by a null-terminated name. The file system
+ * stores the bytes, and this indexes them by name.
+ */
+class Directory {
+    /**
+     * Allocate a new, empty directory.
+     */
+    Directory() {
+	this(new byte[0], 0);
+    }
+
+    /**
+     * Index the contents of a directory file.
+     *
+     * @param	data	the file's contents.
+     * @param	length	the file's length.
+     */
+    Directory(byte[] data, int length) {
+	this.data = data;
+
+	numSlots = length / entrySize;
+	for (int slot=0; slot<numSlots; slot++) {
+	    int number = Lib.bytesToInt(data, slot*entrySize);
+	    if (number == 0) {
+		freeSlots.add(slot);
+		continue;
+	    }
+
+	    int nameStart = slot*entrySize + 4, nameEnd = nameStart;
+	    while (data[nameEnd] != 0)
+		nameEnd++;
+
+	    String name = new String(data, nameStart, nameEnd-nameStart);
+	    entries.put(name, number);
+	    slots.put(name, slot);
+	}
+    }
+
+    /**
+     * Return <tt>true</tt> if <i>name</i> fits in a directory entry.
+     */
+    static boolean checkName(String name) {
+	if (name == null)
+	    return false;
+
+	byte[] bytes = name.getBytes();
+	if (bytes.length == 0 || bytes.length > maxNameLength)
+	    return false;
+
+	for (int i=0; i<bytes.length; i++) {
+	    if (bytes[i] == 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Return the inode number of the file named <i>name</i>, or -1 if there
+     * is none.
+     */
+    int lookup(String name) {
+	Integer number = entries.get(name);
+	return (number == null) ? -1 : number;
+    }
+
+    /**
+     * Return the slot the next entry added will go in.
+     */
+    int nextSlot() {
+	return freeSlots.isEmpty() ? numSlots : freeSlots.first();
+    }
+
+    /**
+     * Add an entry, which must not already be there.
+     *
+     * @return	the slot it went in.
+     */
+    int add(String name, int number) {
+	int slot = nextSlot();
+	if (slot == numSlots) {
+	    numSlots++;
+	    if (data.length < numSlots*entrySize)
+		data = Arrays.copyOf(data, Math.max(numSlots*entrySize,
+						    data.length*2));
+	}
+	else {
+	    freeSlots.remove(slot);
+	}
+
+	byte[] nameBytes = name.getBytes();
+	Arrays.fill(data, slot*entrySize, (slot+1)*entrySize, (byte) 0);
+	Lib.bytesFromInt(data, slot*entrySize, number);
+	System.arraycopy(nameBytes, 0, data, slot*entrySize+4,
+			 nameBytes.length);
+
+	entries.put(name, number);
+	slots.put(name, slot);
+	return slot;
+    }
+
+    /**
+     * Remove an entry.
+     *
+     * @return	the slot it was in, or -1 if there was none.
+     */
+    int remove(String name) {
+	Integer slot = slots.remove(name);
+	if (slot == null)
+	    return -1;
+
+	entries.remove(name);
+	Arrays.fill(data, slot*entrySize, (slot+1)*entrySize, (byte) 0);
+	freeSlots.add(slot);
+	return slot;
+    }
+
+    /**
+     * Return the number of bytes of the file in use.
+     */
+    int length() {
+	return numSlots*entrySize;
+    }
+
+    /**
+     * Return the file's contents, which may run past <tt>length()</tt>.
+     */
+    byte[] getData() {
+	return data;
+    }
+
+    /** The size of an entry. */
+    static final int entrySize = 32;
+
+    private static final int maxNameLength = entrySize - 5;
+
+    private byte[] data;
+    private int numSlots;
+    private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+    private HashMap<String, Integer> slots = new HashMap<String, Integer>();
+    private TreeSet<Integer> freeSlots = new TreeSet<Integer>();
+}
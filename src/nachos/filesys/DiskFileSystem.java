@@ -0,0 +1,1295 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A file system on the simulated disk. The disk is laid out as:
+ *
+ * <pre>
+ * sector 0:	the superblock: a magic number, the number of sectors, the
+ *		number of inodes, and the size of the journal
+ * bitmap:	one bit per sector, set if the sector is in use
+ * inodes:	64-byte inodes, eight to a sector
+ * journal:	the journal, if there is one
+ * data:	everything else
+ * </pre>
+ *
+ * <p>
+ * An inode holds a file's type and length, and the extents holding its data,
+ * each a run of consecutive sectors. The first six extents are in the inode
+ * itself, and the rest in a chain of indirect sectors. Inode 0 is the root
+ * directory: a file of 32-byte entries, each an inode number (0 for an unused
+ * entry) followed by a null-terminated name.
+ *
+ * <p>
+ * A file's next extent starts where its last one ends if it can, and a
+ * growing file allocates more than it needs, so that files written side by
+ * side don't interleave; whatever a file doesn't use is given back when it is
+ * last closed. Setting <tt>DiskFileSystem.allocation</tt> to <tt>block</tt>
+ * instead allocates one sector at a time, from the first free one.
+ *
+ * <p>
+ * Metadata (the bitmap, inodes, indirect sectors and the directory) is
+ * written ahead to a journal of <tt>DiskFileSystem.journalSectors</tt>
+ * sectors, 64 by default, and written to its home on the disk only when the
+ * journal fills up or the file system is synced. Operations that must be
+ * durable when they return wait for their transaction to reach the journal,
+ * and the changes of every operation made meanwhile ride along in the same
+ * transaction: a group commit. A transaction is a descriptor listing the
+ * sectors it changes and the sectors it frees, with a checksum, followed by
+ * the sectors' new contents, all written in one request. Mounting replays
+ * every whole transaction in the journal. A file's data is written before
+ * the transaction that makes it part of the file. Without a journal,
+ * metadata is written in place as it changes.
+ *
+ * <p>
+ * The disk is mounted when the file system is first used, and formatted
+ * then if it doesn't hold a file system yet or if
+ * <tt>DiskFileSystem.format</tt> is set. The shell program and the files
+ * listed in <tt>DiskFileSystem.importFiles</tt> are copied in from the stub
+ * file system if they aren't on the disk.
+ */
+public class DiskFileSystem implements DurableFileSystem {
+    /**
+     * Allocate a new file system on <tt>ThreadedKernel.synchDisk</tt>.
+     */
+    public DiskFileSystem() {
+	this(ThreadedKernel.synchDisk,
+	     !Config.getString("DiskFileSystem.allocation",
+			       "extent").equals("block"),
+	     Config.getInteger("DiskFileSystem.journalSectors", 64),
+	     Config.getBoolean("DiskFileSystem.format", false));
+    }
+
+    /**
+     * Allocate a new file system.
+     *
+     * @param	disk	the disk to keep the file system on.
+     * @param	extents	<tt>true</tt> to allocate extents, or <tt>false</tt> to
+     *			allocate a sector at a time.
+     * @param	journalSectors	the size of the journal to give the disk if
+     *				it is formatted, or 0 for none.
+     * @param	format	<tt>true</tt> to format the disk when mounting it.
+     */
+    public DiskFileSystem(SynchDisk disk, boolean extents, int journalSectors,
+			  boolean format) {
+	Lib.assertTrue(disk != null, "no disk for the file system");
+
+	this.disk = disk;
+	this.extents = extents;
+	this.newJournalSectors = Math.max(0, journalSectors);
+	this.format = format;
+    }
+
+    public OpenFile open(String name, boolean create) {
+	if (!Directory.checkName(name))
+	    return null;
+
+	mount();
+
+	lock.acquire();
+	Inode inode = null;
+	int number = directory.lookup(name);
+	if (number != -1) {
+	    inode = inodes[number];
+	}
+	else if (create) {
+	    inode = allocateInode(typeFile);
+	    if (inode != null && !addEntry(name, inode)) {
+		freeInode(inode);
+		inode = null;
+	    }
+	    commit(true);
+	}
+
+	if (inode != null)
+	    inode.refCount++;
+	lock.release();
+
+	if (inode == null)
+	    return null;
+
+	return new DiskOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	if (!Directory.checkName(name))
+	    return false;
+
+	mount();
+
+	lock.acquire();
+	int number = directory.lookup(name);
+	if (number != -1) {
+	    dirtyDirectory.add(directory.remove(name)*Directory.entrySize /
+			       sectorSize);
+
+	    Inode inode = inodes[number];
+	    inode.removed = true;
+	    if (inode.refCount == 0)
+		freeInode(inode);
+	    commit(true);
+	}
+	lock.release();
+
+	return number != -1;
+    }
+
+    /**
+     * Commit every change made so far, and write the journal's contents home
+     * so that it starts out empty at the next mount.
+     */
+    public void sync() {
+	mount();
+
+	lock.acquire();
+	commit(true);
+
+	if (journalSectors > 0) {
+	    while (committing)
+		committed.sleep();
+	    if (journalTail > 1) {
+		committing = true;
+		checkpointJournal(nextTransaction);
+		committing = false;
+		committed.wakeAll();
+	    }
+	}
+	lock.release();
+    }
+
+    /**
+     * Mount the disk, formatting it if necessary, unless that has been done.
+     */
+    private void mount() {
+	lock.acquire();
+	if (mounted) {
+	    lock.release();
+	    return;
+	}
+	mounted = true;
+
+	byte[] superblock = new byte[sectorSize];
+	disk.readSectors(0, 1, superblock, 0);
+
+	if (format ||
+	    Lib.bytesToInt(superblock, 0) != magic ||
+	    Lib.bytesToInt(superblock, 4) != disk.getNumSectors())
+	    format();
+	else
+	    load(Lib.bytesToInt(superblock, 8), Lib.bytesToInt(superblock, 12));
+	lock.release();
+
+	importFiles(this, "DiskFileSystem.importFiles");
+    }
+
+    /**
+     * Work out where everything is on a disk with <i>numInodes</i> inodes
+     * and a journal of <i>journalSectors</i> sectors.
+     */
+    private void layout(int numInodes, int journalSectors) {
+	this.numInodes = numInodes;
+	this.journalSectors = journalSectors;
+	numSectors = disk.getNumSectors();
+
+	bitmapSectors = (numSectors + sectorSize*8-1) / (sectorSize*8);
+	inodeStart = bitmapStart + bitmapSectors;
+	journalStart = inodeStart + numInodes/inodesPerSector;
+	dataStart = journalStart + journalSectors;
+	Lib.assertTrue(dataStart < numSectors, "disk too small");
+
+	bitmap = new byte[bitmapSectors*sectorSize];
+	inodes = new Inode[numInodes];
+	for (int i=0; i<numInodes; i++)
+	    inodes[i] = new Inode(i);
+
+	directory = new Directory();
+    }
+
+    private void format() {
+	int numInodes = Config.getInteger("DiskFileSystem.numInodes", 256);
+	numInodes = Math.max(inodesPerSector,
+			     numInodes / inodesPerSector * inodesPerSector);
+	layout(numInodes, newJournalSectors);
+
+	for (int i=0; i<dataStart; i++)
+	    setUsed(i, true);
+
+	inodes[rootInode].type = typeDirectory;
+	for (int i=0; i<numInodes; i++)
+	    dirtyInodes.add(inodes[i]);
+	writeHome(changes());
+
+	if (journalSectors > 0)
+	    resetJournal(1);
+
+	// only now is the disk a file system
+	byte[] superblock = new byte[sectorSize];
+	Lib.bytesFromInt(superblock, 0, magic);
+	Lib.bytesFromInt(superblock, 4, numSectors);
+	Lib.bytesFromInt(superblock, 8, numInodes);
+	Lib.bytesFromInt(superblock, 12, journalSectors);
+	disk.writeSectors(0, 1, superblock, 0);
+    }
+
+    private void load(int numInodes, int journalSectors) {
+	layout(numInodes, journalSectors);
+
+	if (journalSectors > 0)
+	    replay();
+
+	disk.readSectors(bitmapStart, bitmapSectors, bitmap, 0);
+
+	byte[] table = new byte[numInodes/inodesPerSector*sectorSize];
+	disk.readSectors(inodeStart, numInodes/inodesPerSector, table, 0);
+
+	byte[] indirect = new byte[sectorSize];
+	for (int i=0; i<numInodes; i++) {
+	    Inode inode = inodes[i];
+	    int offset = i*inodeSize;
+
+	    inode.type = Lib.bytesToInt(table, offset+0);
+	    inode.length = Lib.bytesToInt(table, offset+4);
+	    int numExtents = Lib.bytesToInt(table, offset+8);
+	    int next = Lib.bytesToInt(table, offset+12);
+
+	    for (int j=0; j<numExtents && j<directExtents; j++) {
+		inode.extents.add(new int[] {
+			Lib.bytesToInt(table, offset+16+j*8),
+			Lib.bytesToInt(table, offset+20+j*8) });
+	    }
+
+	    while (next != 0) {
+		inode.chain.add(next);
+		disk.readSectors(next, 1, indirect, 0);
+
+		for (int j=0; j<extentsPerIndirect &&
+			 inode.extents.size() < numExtents; j++) {
+		    inode.extents.add(new int[] {
+			    Lib.bytesToInt(indirect, 4+j*8),
+			    Lib.bytesToInt(indirect, 8+j*8) });
+		}
+		next = Lib.bytesToInt(indirect, 0);
+	    }
+	}
+
+	Inode root = inodes[rootInode];
+	byte[] data = new byte[root.numSectors()*sectorSize];
+	readRuns(runs(root, 0, root.numSectors()), data);
+	directory = new Directory(data, root.length);
+    }
+
+    /**
+     * Copy the files a user kernel needs in from the stub file system: the
+     * shell program, and a comma-separated list of others.
+     *
+     * @param	fileSystem	the file system to copy them to.
+     * @param	key		the configuration key listing the others.
+     */
+    static void importFiles(FileSystem fileSystem, String key) {
+	FileSystem stub = Machine.stubFileSystem();
+	if (stub == null)
+	    return;
+
+	ArrayList<String> names = new ArrayList<String>();
+	if (Machine.processor() != null)
+	    names.add(Machine.getShellProgramName());
+
+	String list = Config.getString(key, "");
+	for (String name : list.split(",")) {
+	    if (name.trim().length() > 0)
+		names.add(name.trim());
+	}
+
+	for (String name : names) {
+	    OpenFile file = fileSystem.open(name, false);
+	    if (file != null) {
+		file.close();
+		continue;
+	    }
+
+	    OpenFile from = stub.open(name, false);
+	    if (from == null)
+		continue;
+
+	    byte[] data = new byte[Math.max(0, from.length())];
+	    int amount = from.read(0, data, 0, data.length);
+	    from.close();
+
+	    OpenFile to = fileSystem.open(name, true);
+	    if (to != null) {
+		if (amount > 0)
+		    to.write(0, data, 0, amount);
+		to.close();
+	    }
+	}
+    }
+
+    private Inode allocateInode(int type) {
+	for (int i=0; i<numInodes; i++) {
+	    Inode inode = inodes[i];
+	    if (i != rootInode && inode.type == typeFree) {
+		inode.type = type;
+		inode.length = 0;
+		inode.removed = false;
+		dirtyInodes.add(inode);
+		return inode;
+	    }
+	}
+
+	return null;
+    }
+
+    private void freeInode(Inode inode) {
+	for (int[] extent : inode.extents)
+	    freeRun(extent[0], extent[1]);
+	inode.extents.clear();
+
+	inode.type = typeFree;
+	inode.length = 0;
+	dirtyInodes.add(inode);
+    }
+
+    private boolean addEntry(String name, Inode inode) {
+	Inode root = inodes[rootInode];
+	int end = (directory.nextSlot()+1) * Directory.entrySize;
+	if (end > root.length) {
+	    if (!allocate(root, (end + sectorSize-1) / sectorSize))
+		return false;
+
+	    root.length = end;
+	    dirtyInodes.add(root);
+	}
+
+	int slot = directory.add(name, inode.number);
+	dirtyDirectory.add(slot*Directory.entrySize / sectorSize);
+	return true;
+    }
+
+    /**
+     * Make sure the first <i>needed</i> sectors of a file are allocated.
+     *
+     * @return	<tt>true</tt> if they are, or <tt>false</tt> if the disk is
+     *		full.
+     */
+    private boolean allocate(Inode inode, int needed) {
+	int have = inode.numSectors();
+	if (have >= needed)
+	    return true;
+
+	dirtyInodes.add(inode);
+
+	// grow by at least as much as the file already has, within limits
+	int wanted = needed - have;
+	if (extents) {
+	    wanted = Math.max(wanted, Math.min(maxReserve,
+					       Math.max(minReserve, have)));
+	}
+
+	while (have < needed) {
+	    int[] run = extents ? allocateRun(inode.goal(allocCursor), wanted) :
+		allocateSector();
+	    if (run == null)
+		return false;
+
+	    inode.addRun(run[0], run[1]);
+	    have += run[1];
+	    wanted -= run[1];
+	}
+
+	return true;
+    }
+
+    /**
+     * Allocate up to <i>count</i> consecutive sectors: at <i>goal</i> if it's
+     * free, else in the first free run after it with room for them all, else
+     * in the longest free run.
+     *
+     * @return	the first sector and the number allocated, or <tt>null</tt>
+     *		if the disk is full.
+     */
+    private int[] allocateRun(int goal, int count) {
+	if (goal < dataStart || goal >= numSectors)
+	    goal = dataStart;
+
+	int numData = numSectors - dataStart;
+	int start = -1, length = 0;
+
+	if (isFree(goal)) {
+	    start = goal;
+	    length = freeRunLength(goal, count);
+	}
+	else {
+	    for (int i=0; i<numData; ) {
+		int sector = dataStart + (goal - dataStart + i) % numData;
+		int run = freeRunLength(sector, count);
+		if (run > length) {
+		    start = sector;
+		    length = run;
+		    if (length == count)
+			break;
+		}
+		i += Math.max(run, 1);
+	    }
+	}
+
+	if (start == -1)
+	    return null;
+
+	for (int i=0; i<length; i++)
+	    setUsed(start+i, true);
+
+	allocCursor = start + length;
+	return new int[] { start, length };
+    }
+
+    private int[] allocateSector() {
+	for (int sector=dataStart; sector<numSectors; sector++) {
+	    if (isFree(sector)) {
+		setUsed(sector, true);
+		return new int[] { sector, 1 };
+	    }
+	}
+
+	return null;
+    }
+
+    private int freeRunLength(int sector, int max) {
+	int length = 0;
+	while (length < max && sector+length < numSectors &&
+	       isFree(sector+length))
+	    length++;
+
+	return length;
+    }
+
+    private void freeRun(int start, int count) {
+	for (int i=0; i<count; i++)
+	    setUsed(start+i, false);
+    }
+
+    private boolean isFree(int sector) {
+	return (bitmap[sector/8] & (1 << (sector%8))) == 0;
+    }
+
+    private void setUsed(int sector, boolean used) {
+	if (used)
+	    bitmap[sector/8] |= (byte) (1 << (sector%8));
+	else
+	    bitmap[sector/8] &= (byte) ~(1 << (sector%8));
+
+	dirtyBitmap.add(sector / (sectorSize*8));
+    }
+
+    /**
+     * Give back the sectors a file has past its end.
+     */
+    private void trim(Inode inode) {
+	int needed = (inode.length + sectorSize-1) / sectorSize;
+	int have = inode.numSectors();
+
+	while (have > needed) {
+	    int[] last = inode.extents.get(inode.extents.size()-1);
+	    int count = Math.min(last[1], have - needed);
+
+	    freeRun(last[0] + last[1] - count, count);
+	    last[1] -= count;
+	    if (last[1] == 0)
+		inode.extents.remove(inode.extents.size()-1);
+
+	    have -= count;
+	    dirtyInodes.add(inode);
+	}
+    }
+
+    /**
+     * Return the disk runs holding sectors <i>first</i> through
+     * <i>first+count-1</i> of a file, which must be allocated.
+     */
+    private ArrayList<int[]> runs(Inode inode, int first, int count) {
+	ArrayList<int[]> runs = new ArrayList<int[]>();
+
+	int index = 0;
+	for (int[] extent : inode.extents) {
+	    if (count == 0)
+		break;
+
+	    if (first < index + extent[1]) {
+		int skip = first - index;
+		int n = Math.min(count, extent[1] - skip);
+		runs.add(new int[] { extent[0] + skip, n });
+		first += n;
+		count -= n;
+	    }
+	    index += extent[1];
+	}
+
+	Lib.assertTrue(count == 0);
+	return runs;
+    }
+
+    private void readRuns(ArrayList<int[]> runs, byte[] buf) {
+	int offset = 0;
+	for (int[] run : runs) {
+	    disk.readSectors(run[0], run[1], buf, offset);
+	    offset += run[1]*sectorSize;
+	}
+    }
+
+    private void writeRuns(ArrayList<int[]> runs, byte[] buf) {
+	int offset = 0;
+	for (int[] run : runs) {
+	    disk.writeSectors(run[0], run[1], buf, offset);
+	    offset += run[1]*sectorSize;
+	}
+    }
+
+    /**
+     * Collect the new contents of every metadata sector changed since the
+     * last call.
+     */
+    private TreeMap<Integer, byte[]> changes() {
+	// placing indirect sectors can allocate, so do that first
+	for (Inode inode : dirtyInodes)
+	    placeChain(inode);
+
+	TreeMap<Integer, byte[]> sectors = new TreeMap<Integer, byte[]>();
+
+	for (int i : dirtyBitmap) {
+	    sectors.put(bitmapStart + i,
+			Arrays.copyOfRange(bitmap, i*sectorSize,
+					   (i+1)*sectorSize));
+	}
+
+	for (Inode inode : dirtyInodes) {
+	    int i = inode.number / inodesPerSector;
+	    if (!sectors.containsKey(inodeStart + i))
+		sectors.put(inodeStart + i, inodeSector(i));
+
+	    for (int j=0; j<inode.chain.size(); j++)
+		sectors.put(inode.chain.get(j), indirectSector(inode, j));
+	}
+
+	Inode root = inodes[rootInode];
+	for (int i : dirtyDirectory) {
+	    sectors.put(runs(root, i, 1).get(0)[0],
+			Arrays.copyOfRange(directory.getData(), i*sectorSize,
+					   (i+1)*sectorSize));
+	}
+
+	dirtyBitmap.clear();
+	dirtyInodes.clear();
+	dirtyDirectory.clear();
+
+	return sectors;
+    }
+
+    /**
+     * Write metadata sectors to their homes, runs of consecutive sectors
+     * together.
+     */
+    private void writeHome(TreeMap<Integer, byte[]> sectors) {
+	while (!sectors.isEmpty()) {
+	    int first = sectors.firstKey(), count = 0;
+	    while (sectors.containsKey(first + count))
+		count++;
+
+	    byte[] buf = new byte[count*sectorSize];
+	    for (int i=0; i<count; i++) {
+		System.arraycopy(sectors.remove(first + i), 0, buf,
+				 i*sectorSize, sectorSize);
+	    }
+	    disk.writeSectors(first, count, buf, 0);
+	}
+    }
+
+    /**
+     * Add every metadata change made since the last commit to the running
+     * transaction. Called with the lock held.
+     *
+     * @param	wait	<tt>true</tt> to return only once the transaction is
+     *			in the journal. Otherwise, it goes with the next one
+     *			that is waited for.
+     */
+    private void commit(boolean wait) {
+	TreeMap<Integer, byte[]> sectors = changes();
+
+	if (journalSectors == 0) {
+	    writeHome(sectors);
+	    return;
+	}
+
+	running.putAll(sectors);
+	for (int sector : sectors.keySet())
+	    runningRevoked.remove(sector);
+
+	// don't let a transaction outgrow the journal
+	if (!wait && (running.size() + runningRevoked.size()/128 + 2)*2 >
+	    journalSectors)
+	    wait = true;
+
+	// with nothing new, wait only for the transaction being written
+	int transaction = nextTransaction;
+	if (running.isEmpty() && runningRevoked.isEmpty())
+	    transaction--;
+
+	// whoever isn't writing a transaction already writes this one
+	while (wait && committedTransaction < transaction) {
+	    if (committing)
+		committed.sleep();
+	    else
+		commitRunning();
+	}
+    }
+
+    /**
+     * Write the running transaction to the journal, releasing the lock while
+     * the disk does it so that more changes can join the next one.
+     */
+    private void commitRunning() {
+	committing = true;
+
+	TreeMap<Integer, byte[]> sectors = running;
+	TreeSet<Integer> revoked = runningRevoked;
+	running = new TreeMap<Integer, byte[]>();
+	runningRevoked = new TreeSet<Integer>();
+
+	int descriptorSectors = (descriptorSize + 4*(sectors.size() +
+						     revoked.size()) +
+				 sectorSize-1) / sectorSize;
+	int size = descriptorSectors + sectors.size();
+	Lib.assertTrue(size < journalSectors, "transaction too large");
+
+	if (journalTail + size > journalSectors)
+	    checkpointJournal(nextTransaction);
+
+	int transaction = nextTransaction++;
+
+	byte[] record = new byte[size*sectorSize];
+	Lib.bytesFromInt(record, 0, recordMagic);
+	Lib.bytesFromInt(record, 4, transaction);
+	Lib.bytesFromInt(record, 8, sectors.size());
+	Lib.bytesFromInt(record, 12, revoked.size());
+
+	int pos = descriptorSize;
+	for (int sector : sectors.keySet()) {
+	    Lib.bytesFromInt(record, pos, sector);
+	    pos += 4;
+	}
+	for (int sector : revoked) {
+	    Lib.bytesFromInt(record, pos, sector);
+	    pos += 4;
+	}
+
+	pos = descriptorSectors*sectorSize;
+	for (byte[] image : sectors.values()) {
+	    System.arraycopy(image, 0, record, pos, sectorSize);
+	    pos += sectorSize;
+	}
+
+	Lib.bytesFromInt(record, 16, checksum(record, descriptorSectors,
+					      sectors.size()));
+
+	int at = journalTail;
+	journalTail += size;
+
+	lock.release();
+	disk.writeSectors(journalStart + at, size, record, 0);
+	lock.acquire();
+
+	unwritten.putAll(sectors);
+	committedTransaction = transaction;
+	Machine.stats().numJournalTransactions++;
+	Machine.stats().numJournalSectors += size;
+
+	committing = false;
+	committed.wakeAll();
+    }
+
+    /**
+     * Return the checksum of a journal record: its sequence number, the
+     * lists in its descriptor, and the new sector contents.
+     */
+    private static int checksum(byte[] record, int descriptorSectors,
+				int count) {
+	int end = descriptorSize + 4*(Lib.bytesToInt(record, 8) +
+				      Lib.bytesToInt(record, 12));
+	int sum = Lib.bytesToInt(record, 4);
+
+	for (int i=descriptorSize; i<end; i++)
+	    sum = sum*31 + record[i];
+	for (int i=descriptorSectors*sectorSize;
+	     i<(descriptorSectors+count)*sectorSize; i++)
+	    sum = sum*31 + record[i];
+
+	return sum;
+    }
+
+    /**
+     * Write everything committed to its home, and empty the journal. Called
+     * with the lock held, by the thread committing.
+     *
+     * @param	firstTransaction	the next transaction to be written.
+     */
+    private void checkpointJournal(int firstTransaction) {
+	// the lock stays held, so that no freed sector is reused for data
+	// until its stale metadata is no longer due to be written over it
+	writeHome(unwritten);
+	resetJournal(firstTransaction);
+	Machine.stats().numJournalCheckpoints++;
+    }
+
+    private void resetJournal(int firstTransaction) {
+	byte[] header = new byte[sectorSize];
+	Lib.bytesFromInt(header, 0, journalMagic);
+	Lib.bytesFromInt(header, 4, firstTransaction);
+	disk.writeSectors(journalStart, 1, header, 0);
+
+	journalTail = 1;
+	nextTransaction = firstTransaction;
+	committedTransaction = firstTransaction - 1;
+    }
+
+    /**
+     * Apply every whole transaction in the journal, in order, then empty
+     * it.
+     */
+    private void replay() {
+	byte[] header = new byte[sectorSize];
+	disk.readSectors(journalStart, 1, header, 0);
+	int transaction = (Lib.bytesToInt(header, 0) == journalMagic) ?
+	    Lib.bytesToInt(header, 4) : 1;
+
+	TreeMap<Integer, byte[]> sectors = new TreeMap<Integer, byte[]>();
+	int at = 1;
+	while (at < journalSectors) {
+	    disk.readSectors(journalStart + at, 1, header, 0);
+	    if (Lib.bytesToInt(header, 0) != recordMagic ||
+		Lib.bytesToInt(header, 4) != transaction)
+		break;
+
+	    int count = Lib.bytesToInt(header, 8);
+	    int numRevoked = Lib.bytesToInt(header, 12);
+	    if (count < 0 || numRevoked < 0 ||
+		count + numRevoked > journalSectors*sectorSize/4)
+		break;
+
+	    int descriptorSectors = (descriptorSize + 4*(count + numRevoked) +
+				     sectorSize-1) / sectorSize;
+	    int size = descriptorSectors + count;
+	    if (at + size > journalSectors)
+		break;
+
+	    byte[] record = new byte[size*sectorSize];
+	    disk.readSectors(journalStart + at, size, record, 0);
+	    if (checksum(record, descriptorSectors, count) !=
+		Lib.bytesToInt(record, 16))
+		break;
+
+	    int pos = descriptorSize + 4*count;
+	    for (int i=0; i<numRevoked; i++, pos+=4)
+		sectors.remove(Lib.bytesToInt(record, pos));
+
+	    for (int i=0; i<count; i++) {
+		int sector = Lib.bytesToInt(record, descriptorSize + 4*i);
+		if (sector > 0 && sector < numSectors) {
+		    int offset = (descriptorSectors+i)*sectorSize;
+		    sectors.put(sector, Arrays.copyOfRange(record, offset,
+							   offset+sectorSize));
+		}
+	    }
+
+	    at += size;
+	    transaction++;
+	    Machine.stats().numJournalReplayed++;
+	}
+
+	writeHome(sectors);
+	resetJournal(transaction);
+    }
+
+    /**
+     * Allocate or free indirect sectors until a file has just enough for its
+     * extents.
+     */
+    private void placeChain(Inode inode) {
+	int numExtents = inode.extents.size();
+	int needed = (numExtents <= directExtents) ? 0 :
+	    (numExtents - directExtents + extentsPerIndirect-1) /
+	    extentsPerIndirect;
+
+	while (inode.chain.size() > needed) {
+	    int sector = inode.chain.remove(inode.chain.size()-1);
+	    freeRun(sector, 1);
+
+	    // the sector may become data, so stale copies must not be replayed
+	    if (journalSectors > 0) {
+		running.remove(sector);
+		unwritten.remove(sector);
+		runningRevoked.add(sector);
+	    }
+	}
+
+	while (inode.chain.size() < needed) {
+	    int[] run = allocateRun(inode.goal(allocCursor), 1);
+	    Lib.assertTrue(run != null, "no room for indirect sector");
+	    inode.chain.add(run[0]);
+	}
+    }
+
+    private byte[] inodeSector(int i) {
+	byte[] buf = new byte[sectorSize];
+
+	for (int j=0; j<inodesPerSector; j++) {
+	    Inode inode = inodes[i*inodesPerSector + j];
+	    int offset = j*inodeSize;
+
+	    Lib.bytesFromInt(buf, offset+0, inode.type);
+	    Lib.bytesFromInt(buf, offset+4, inode.length);
+	    Lib.bytesFromInt(buf, offset+8, inode.extents.size());
+	    Lib.bytesFromInt(buf, offset+12,
+			     inode.chain.isEmpty() ? 0 : inode.chain.get(0));
+
+	    for (int k=0; k<directExtents && k<inode.extents.size(); k++) {
+		int[] extent = inode.extents.get(k);
+		Lib.bytesFromInt(buf, offset+16+k*8, extent[0]);
+		Lib.bytesFromInt(buf, offset+20+k*8, extent[1]);
+	    }
+	}
+
+	return buf;
+    }
+
+    private byte[] indirectSector(Inode inode, int j) {
+	byte[] buf = new byte[sectorSize];
+
+	Lib.bytesFromInt(buf, 0,
+			 j+1 < inode.chain.size() ? inode.chain.get(j+1) : 0);
+
+	int first = directExtents + j*extentsPerIndirect;
+	for (int k=0; k<extentsPerIndirect &&
+		 first+k < inode.extents.size(); k++) {
+	    int[] extent = inode.extents.get(first+k);
+	    Lib.bytesFromInt(buf, 4+k*8, extent[0]);
+	    Lib.bytesFromInt(buf, 8+k*8, extent[1]);
+	}
+
+	return buf;
+    }
+
+    private int read(Inode inode, int pos, byte[] buf, int offset,
+		     int length) {
+	if (pos < 0 || offset < 0 || length < 0 ||
+	    (long) offset + length > buf.length)
+	    return -1;
+
+	lock.acquire();
+	int end = (int) Math.min((long) pos + length, inode.length);
+	if (pos >= end) {
+	    lock.release();
+	    return 0;
+	}
+
+	int first = pos / sectorSize, last = (end-1) / sectorSize;
+	ArrayList<int[]> runs = runs(inode, first, last-first+1);
+	lock.release();
+
+	// the sectors stay the file's while it's open, so read without the lock
+	byte[] data = new byte[(last-first+1)*sectorSize];
+	readRuns(runs, data);
+	System.arraycopy(data, pos - first*sectorSize, buf, offset, end-pos);
+
+	return end-pos;
+    }
+
+    private int write(Inode inode, int pos, byte[] buf, int offset,
+		      int length) {
+	if (pos < 0 || offset < 0 || length < 0 ||
+	    (long) offset + length > buf.length ||
+	    (long) pos + length > Integer.MAX_VALUE)
+	    return -1;
+
+	if (length == 0)
+	    return 0;
+
+	inode.writeLock.acquire();
+
+	lock.acquire();
+	int oldLength = inode.length;
+	// fill any gap past the end with zeros
+	int start = Math.min(pos, oldLength), end = pos + length;
+	int first = start / sectorSize, last = (end-1) / sectorSize;
+
+	boolean allocated = allocate(inode, last+1);
+	commit(false);
+	if (!allocated) {
+	    lock.release();
+	    inode.writeLock.release();
+	    return -1;
+	}
+
+	ArrayList<int[]> runs = runs(inode, first, last-first+1);
+	lock.release();
+
+	byte[] data = new byte[(last-first+1)*sectorSize];
+
+	// keep what's already in partly overwritten sectors
+	int oldSectors = (oldLength + sectorSize-1) / sectorSize;
+	if (start % sectorSize != 0)
+	    disk.readSectors(runs.get(0)[0], 1, data, 0);
+	if (end % sectorSize != 0 && last < oldSectors &&
+	    (last != first || start % sectorSize == 0)) {
+	    int[] run = runs.get(runs.size()-1);
+	    disk.readSectors(run[0] + run[1]-1, 1, data,
+			     (last-first)*sectorSize);
+	}
+
+	System.arraycopy(buf, offset, data, pos - first*sectorSize, length);
+	writeRuns(runs, data);
+
+	// only grow the file once the data is there
+	lock.acquire();
+	if (end > inode.length) {
+	    inode.length = end;
+	    dirtyInodes.add(inode);
+	    commit(true);
+	}
+	lock.release();
+
+	inode.writeLock.release();
+
+	return length;
+    }
+
+    private void release(Inode inode) {
+	lock.acquire();
+	if (--inode.refCount == 0) {
+	    if (inode.removed)
+		freeInode(inode);
+	    else
+		trim(inode);
+	    commit(false);
+	}
+	lock.release();
+    }
+
+    /**
+     * Compare the seeks it takes to write and read back files under each
+     * kind of allocation. The disk is first aged by filling part of it with
+     * small files and removing every other one. Then several threads write
+     * files side by side, a little at a time, and the files are read back
+     * one after another. Then measure metadata operations per second with
+     * and without the journal, and check that a journal left unsynced is
+     * replayed. Formats the disk.
+     */
+    public static void selfTest() {
+	benchmark(true);
+	benchmark(false);
+
+	metadataBenchmark(0);
+	metadataBenchmark(64);
+	replayTest();
+    }
+
+    private static void benchmark(boolean extents) {
+	final DiskFileSystem fs =
+	    new DiskFileSystem(ThreadedKernel.synchDisk, extents, 0, true);
+	final int numFiles = 4, fileSize = 64*1024, chunkSize = 2048;
+	final int readSize = 16*1024;
+	final int numSmallFiles = 64;
+	final Semaphore finished = new Semaphore(0);
+
+	byte[] small = new byte[2*sectorSize];
+	for (int i=0; i<numSmallFiles; i++) {
+	    OpenFile file = fs.open("small" + i, true);
+	    file.write(0, small, 0, small.length);
+	    file.close();
+	}
+	for (int i=0; i<numSmallFiles; i+=2)
+	    fs.remove("small" + i);
+
+	int seeks = Machine.stats().numDiskSeeks;
+	long start = Machine.timer().getTime();
+
+	for (int i=0; i<numFiles; i++) {
+	    final int id = i;
+	    new KThread(new Runnable() {
+		    public void run() {
+			OpenFile file = fs.open("big" + id, true);
+			byte[] buf = new byte[chunkSize];
+			Arrays.fill(buf, (byte) id);
+			for (int pos=0; pos<fileSize; pos+=chunkSize)
+			    file.write(pos, buf, 0, chunkSize);
+			file.close();
+			finished.V();
+		    }
+		}).setName("writer " + i).fork();
+	}
+	for (int i=0; i<numFiles; i++)
+	    finished.P();
+
+	int writeSeeks = Machine.stats().numDiskSeeks - seeks;
+	long writeTicks = Machine.timer().getTime() - start;
+
+	seeks = Machine.stats().numDiskSeeks;
+	start = Machine.timer().getTime();
+
+	int numExtents = 0;
+	byte[] buf = new byte[readSize];
+	for (int i=0; i<numFiles; i++) {
+	    OpenFile file = fs.open("big" + i, false);
+	    for (int pos=0; pos<fileSize; pos+=readSize) {
+		Lib.assertTrue(file.read(pos, buf, 0, readSize) == readSize);
+		Lib.assertTrue(buf[0] == i && buf[readSize-1] == i);
+	    }
+	    numExtents += fs.inodes[fs.directory.lookup("big" + i)].extents.size();
+	    file.close();
+	}
+
+	int readSeeks = Machine.stats().numDiskSeeks - seeks;
+	long readTicks = Machine.timer().getTime() - start;
+
+	for (int i=0; i<numFiles; i++)
+	    fs.remove("big" + i);
+	for (int i=1; i<numSmallFiles; i+=2)
+	    fs.remove("small" + i);
+
+	double megabytes = (double) numFiles*fileSize / (1024*1024);
+	System.out.println("DiskFileSystem, " +
+			   (extents ? "extent" : "block-at-a-time") +
+			   " allocation: " + numExtents/numFiles +
+			   " extents per file; writing " +
+			   Math.round(writeSeeks/megabytes) + " seeks/MB in " +
+			   writeTicks + " ticks, reading " +
+			   Math.round(readSeeks/megabytes) + " seeks/MB in " +
+			   readTicks + " ticks");
+    }
+
+    /**
+     * Have many threads each create, write, close and remove small files at
+     * once, and report the creates, writes and removes done per simulated
+     * second, taking a million ticks as a second.
+     */
+    private static void metadataBenchmark(int journalSectors) {
+	final DiskFileSystem fs =
+	    new DiskFileSystem(ThreadedKernel.synchDisk, true, journalSectors,
+			       true);
+	final int numThreads = 16, filesPerThread = 8, fileSize = 100;
+	final Semaphore finished = new Semaphore(0);
+
+	// mount before starting the clock
+	fs.remove("nothing");
+
+	int transactions = Machine.stats().numJournalTransactions;
+	long start = Machine.timer().getTime();
+
+	for (int i=0; i<numThreads; i++) {
+	    final int id = i;
+	    new KThread(new Runnable() {
+		    public void run() {
+			byte[] buf = new byte[fileSize];
+			for (int j=0; j<filesPerThread; j++) {
+			    String name = "meta" + id + "." + j;
+			    OpenFile file = fs.open(name, true);
+			    Lib.assertTrue(file.write(0, buf, 0, fileSize) ==
+					   fileSize);
+			    file.close();
+			    Lib.assertTrue(fs.remove(name));
+			}
+			finished.V();
+		    }
+		}).setName("metadata " + i).fork();
+	}
+	for (int i=0; i<numThreads; i++)
+	    finished.P();
+
+	long ticks = Machine.timer().getTime() - start;
+	int ops = numThreads*filesPerThread*3;
+	transactions = Machine.stats().numJournalTransactions - transactions;
+
+	System.out.println("DiskFileSystem, " +
+			   (journalSectors > 0 ? "journaled" : "unjournaled") +
+			   " metadata: " + ops + " creates, writes and removes" +
+			   " by " + numThreads + " threads in " + ticks +
+			   " ticks, " + Math.round(ops * 1000000.0 / ticks) +
+			   " ops/s" + (journalSectors > 0 ?
+				       ", " + transactions + " transactions" : ""));
+    }
+
+    /**
+     * Make changes without syncing them, then mount the disk afresh as if
+     * the machine had crashed, and check they were replayed.
+     */
+    private static void replayTest() {
+	DiskFileSystem fs =
+	    new DiskFileSystem(ThreadedKernel.synchDisk, true, 64, true);
+	byte[] buf = new byte[3*sectorSize];
+	for (int i=0; i<buf.length; i++)
+	    buf[i] = (byte) i;
+
+	for (int i=0; i<4; i++) {
+	    OpenFile file = fs.open("replay" + i, true);
+	    Lib.assertTrue(file.write(0, buf, 0, buf.length) == buf.length);
+	    file.close();
+	}
+	fs.remove("replay0");
+
+	int replayed = Machine.stats().numJournalReplayed;
+	fs = new DiskFileSystem(ThreadedKernel.synchDisk, true, 64, false);
+	Lib.assertTrue(fs.open("replay0", false) == null);
+
+	byte[] check = new byte[buf.length];
+	for (int i=1; i<4; i++) {
+	    OpenFile file = fs.open("replay" + i, false);
+	    Lib.assertTrue(file != null && file.length() == buf.length);
+	    Lib.assertTrue(file.read(0, check, 0, check.length) ==
+			   check.length);
+	    Lib.assertTrue(Arrays.equals(buf, check));
+	    file.close();
+	    fs.remove("replay" + i);
+	}
+	Lib.assertTrue(Machine.stats().numJournalReplayed > replayed);
+	fs.sync();
+    }
+
+    /** A file as the file system keeps it. */
+    private static class Inode {
+	Inode(int number) {
+	    this.number = number;
+	}
+
+	int numSectors() {
+	    int count = 0;
+	    for (int[] extent : extents)
+		count += extent[1];
+
+	    return count;
+	}
+
+	/** Add a run of sectors to the end of the file. */
+	void addRun(int start, int count) {
+	    if (!extents.isEmpty()) {
+		int[] last = extents.get(extents.size()-1);
+		if (last[0] + last[1] == start) {
+		    last[1] += count;
+		    return;
+		}
+	    }
+
+	    extents.add(new int[] { start, count });
+	}
+
+	/** Return where the file's next sector should go. */
+	int goal(int otherwise) {
+	    if (extents.isEmpty())
+		return otherwise;
+
+	    int[] last = extents.get(extents.size()-1);
+	    return last[0] + last[1];
+	}
+
+	int number;
+	int type = typeFree;
+	int length = 0;
+	/** Each extent's first sector and number of sectors. */
+	ArrayList<int[]> extents = new ArrayList<int[]>();
+	/** The indirect sectors holding extents past the sixth. */
+	ArrayList<Integer> chain = new ArrayList<Integer>();
+
+	int refCount = 0;
+	boolean removed = false;
+	Lock writeLock = new Lock();
+    }
+
+    private class DiskOpenFile extends OpenFileWithPosition {
+	DiskOpenFile(String name, Inode inode) {
+	    super(DiskFileSystem.this, name);
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null)
+		return -1;
+
+	    return DiskFileSystem.this.read(inode, pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null)
+		return -1;
+
+	    return DiskFileSystem.this.write(inode, pos, buf, offset, length);
+	}
+
+	public int length() {
+	    if (inode == null)
+		return -1;
+
+	    return inode.length;
+	}
+
+	public void close() {
+	    if (inode != null) {
+		release(inode);
+		inode = null;
+	    }
+	}
+
+	private Inode inode;
+    }
+
+    private SynchDisk disk;
+    private boolean extents, format;
+    private int newJournalSectors;
+    private boolean mounted = false;
+    private Lock lock = new Lock();
+
+    private int numSectors, numInodes, journalSectors;
+    private int bitmapSectors, inodeStart, journalStart, dataStart;
+    private byte[] bitmap;
+    private Inode[] inodes;
+    private int allocCursor = 0;
+
+    private Directory directory;
+
+    /** What has changed since the last commit. */
+    private TreeSet<Integer> dirtyBitmap = new TreeSet<Integer>();
+    private HashSet<Inode> dirtyInodes = new HashSet<Inode>();
+    private TreeSet<Integer> dirtyDirectory = new TreeSet<Integer>();
+
+    /** The transaction changes are joining, and the sectors it frees. */
+    private TreeMap<Integer, byte[]> running = new TreeMap<Integer, byte[]>();
+    private TreeSet<Integer> runningRevoked = new TreeSet<Integer>();
+    /** What is in the journal but not yet at home. */
+    private TreeMap<Integer, byte[]> unwritten =
+	new TreeMap<Integer, byte[]>();
+    private int journalTail;
+    private int nextTransaction, committedTransaction;
+    private boolean committing = false;
+    private Condition2 committed = new Condition2(lock);
+
+    private static final int sectorSize = Disk.sectorSize;
+    private static final int magic = 0x4E414348;
+    private static final int bitmapStart = 1;
+
+    private static final int journalMagic = 0x4A524E4C;
+    private static final int recordMagic = 0x54584E20;
+    /** A record's magic number, sequence number, counts and checksum. */
+    private static final int descriptorSize = 20;
+
+    private static final int inodeSize = 64;
+    private static final int inodesPerSector = sectorSize / inodeSize;
+    private static final int directExtents = 6;
+    private static final int extentsPerIndirect = (sectorSize-4) / 8;
+    private static final int rootInode = 0;
+    private static final int typeFree = 0, typeFile = 1, typeDirectory = 2;
+
+    /** The least and most a growing file allocates at once. */
+    private static final int minReserve = 8, maxReserve = 64;
+}
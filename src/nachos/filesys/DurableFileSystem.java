@@ -0,0 +1,15 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * A file system that holds some writes back, and can be made to put them on
+ * stable storage.
+ */
+public interface DurableFileSystem extends FileSystem {
+    /**
+     * Write everything held back to stable storage, and return once it is
+     * there.
+     */
+    public void sync();
+}
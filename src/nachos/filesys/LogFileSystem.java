@@ -0,0 +1,1055 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A log-structured file system on the simulated disk. Every write, of data
+ * or of metadata, is appended to a log, and the log goes to the disk a
+ * segment at a time, so that small scattered writes become large sequential
+ * ones.
+ *
+ * <p>
+ * The disk is divided into segments of a track each. The first holds two
+ * checkpoint regions, and the rest hold the log. A segment's first sector is
+ * its summary, giving the owner of each of its other sectors: a block of a
+ * file, a block of pointers to the blocks of a larger file, a block of
+ * inodes, or a block of the inode map. Inodes move every time they are
+ * written, and the inode map says where each one is.
+ *
+ * <p>
+ * The inode map and the number of live blocks in each segment are kept in
+ * memory. A checkpoint writes out the map, then records it, the segment
+ * usage, and the end of the log in one of the checkpoint regions, taking
+ * turns between the two. Mounting starts from the newer checkpoint, so
+ * anything written after it is lost in a crash. Checkpoints are taken every
+ * <tt>checkpointSegments</tt> segments and whenever the file system is
+ * synced.
+ *
+ * <p>
+ * Overwriting a block leaves a dead one behind in the log. When free
+ * segments run low, a cleaner thread picks the segments with the best ratio
+ * of space freed and age to the cost of copying, as in Sprite LFS, and
+ * appends their live blocks to the log. A segment is reused only once no
+ * checkpoint refers to it.
+ *
+ * <p>
+ * Like <tt>DiskFileSystem</tt>, this mounts the disk when it is first used,
+ * and copies in the files listed in <tt>LogFileSystem.importFiles</tt>.
+ */
+public class LogFileSystem implements DurableFileSystem {
+    /**
+     * Allocate a new file system on <tt>ThreadedKernel.synchDisk</tt>.
+     */
+    public LogFileSystem() {
+	this(ThreadedKernel.synchDisk,
+	     Config.getBoolean("LogFileSystem.format", false));
+    }
+
+    /**
+     * Allocate a new file system.
+     *
+     * @param	disk	the disk to keep the file system on.
+     * @param	format	<tt>true</tt> to format the disk when mounting it.
+     */
+    public LogFileSystem(SynchDisk disk, boolean format) {
+	Lib.assertTrue(disk != null, "no disk for the file system");
+
+	this.disk = disk;
+	this.format = format;
+
+	cleanThreshold = Config.getInteger("LogFileSystem.cleanThreshold", 8);
+	Lib.assertTrue(cleanThreshold > reserveSegments);
+    }
+
+    public OpenFile open(String name, boolean create) {
+	if (!Directory.checkName(name))
+	    return null;
+
+	mount();
+
+	lock.acquire();
+	Inode inode = null;
+	int number = directory.lookup(name);
+	if (number != -1) {
+	    inode = inodes[number];
+	}
+	else if (create) {
+	    inode = allocateInode(typeFile);
+	    if (inode != null && !addEntry(name, inode)) {
+		freeInode(inode);
+		inode = null;
+	    }
+	}
+
+	if (inode != null)
+	    inode.refCount++;
+	lock.release();
+
+	if (inode == null)
+	    return null;
+
+	return new LogOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	if (!Directory.checkName(name))
+	    return false;
+
+	mount();
+
+	lock.acquire();
+	int number = directory.lookup(name);
+	if (number != -1) {
+	    int slot = directory.remove(name);
+	    writeEntry(slot);
+
+	    Inode inode = inodes[number];
+	    inode.removed = true;
+	    if (inode.refCount == 0)
+		freeInode(inode);
+	}
+	lock.release();
+
+	return number != -1;
+    }
+
+    /**
+     * Take a checkpoint, so that everything written so far survives a
+     * crash.
+     */
+    public void sync() {
+	mount();
+
+	lock.acquire();
+	checkpoint();
+	lock.release();
+    }
+
+    /**
+     * Mount the disk, formatting it if necessary, unless that has been done.
+     */
+    private void mount() {
+	lock.acquire();
+	if (mounted) {
+	    lock.release();
+	    return;
+	}
+	mounted = true;
+
+	numSectors = disk.getNumSectors();
+	numSegments = numSectors / segmentSectors;
+	Lib.assertTrue(numSegments > cleanThreshold*2, "disk too small");
+
+	byte[][] regions = new byte[2][];
+	int newest = -1, newestSeq = 0;
+	for (int i=0; i<2; i++) {
+	    regions[i] = new byte[segmentSectors/2*sectorSize];
+	    disk.readSectors(i*segmentSectors/2, segmentSectors/2, regions[i],
+			     0);
+
+	    int seq = Lib.bytesToInt(regions[i], 4);
+	    if (Lib.bytesToInt(regions[i], 0) == magic &&
+		Lib.bytesToInt(regions[i], 8) == numSectors &&
+		(newest == -1 || seq - newestSeq > 0)) {
+		newest = i;
+		newestSeq = seq;
+	    }
+	}
+
+	if (format || newest == -1)
+	    format();
+	else
+	    load(regions[newest]);
+
+	new KThread(new Runnable() {
+		public void run() { cleanLoop(); }
+	    }).setName("cleaner").fork();
+
+	lock.release();
+
+	DiskFileSystem.importFiles(this, "LogFileSystem.importFiles");
+    }
+
+    /**
+     * Set up the file system's memory for a disk with <i>numInodes</i>
+     * inodes.
+     */
+    private void layout(int numInodes) {
+	this.numInodes = numInodes;
+	imapBlocks = (numInodes + pointersPerBlock-1) / pointersPerBlock;
+	Lib.assertTrue(checkpointSize() <= segmentSectors/2*sectorSize,
+		       "too many segments or inodes for a checkpoint");
+
+	inodes = new Inode[numInodes];
+	for (int i=0; i<numInodes; i++)
+	    inodes[i] = new Inode(i);
+
+	imap = new int[numInodes];
+	imapAddresses = new int[imapBlocks];
+	live = new int[numSegments];
+	written = new long[numSegments];
+	pendingFree = new boolean[numSegments];
+    }
+
+    private int checkpointSize() {
+	return 24 + imapBlocks*4 + numSegments*4;
+    }
+
+    private void format() {
+	int numInodes = Config.getInteger("LogFileSystem.numInodes", 256);
+	layout(Math.max(1, numInodes));
+
+	// neither old checkpoint may survive
+	disk.writeSectors(0, segmentSectors, new byte[segmentSectors*sectorSize],
+			  0);
+	checkpointSeq = 0;
+
+	segment = 1;
+	offset = 1;
+	flushed = 0;
+	Arrays.fill(segmentBuffer, (byte) 0);
+
+	inodes[rootInode].type = typeDirectory;
+	dirtyInodes.add(inodes[rootInode]);
+	directory = new Directory();
+
+	checkpoint();
+    }
+
+    private void load(byte[] region) {
+	checkpointSeq = Lib.bytesToInt(region, 4);
+	layout(Lib.bytesToInt(region, 12));
+	segment = Lib.bytesToInt(region, 16);
+	offset = Lib.bytesToInt(region, 20);
+
+	int pos = 24;
+	for (int i=0; i<imapBlocks; i++, pos+=4)
+	    imapAddresses[i] = Lib.bytesToInt(region, pos);
+	for (int i=0; i<numSegments; i++, pos+=4)
+	    live[i] = Lib.bytesToInt(region, pos);
+
+	// carry on writing the log where the checkpoint left it
+	disk.readSectors(segment*segmentSectors, segmentSectors, segmentBuffer,
+			 0);
+	flushed = offset;
+
+	byte[] block = new byte[sectorSize];
+	for (int i=0; i<imapBlocks; i++) {
+	    readBlock(imapAddresses[i], block, 0);
+	    for (int j=0; j<pointersPerBlock &&
+		     i*pointersPerBlock+j < numInodes; j++)
+		imap[i*pointersPerBlock+j] = Lib.bytesToInt(block, j*4);
+	}
+
+	HashMap<Integer, byte[]> inodeBlocks = new HashMap<Integer, byte[]>();
+	for (int i=0; i<numInodes; i++) {
+	    if (imap[i] == 0)
+		continue;
+
+	    int address = imap[i] / inodesPerBlock;
+	    byte[] data = inodeBlocks.get(address);
+	    if (data == null) {
+		data = new byte[sectorSize];
+		readBlock(address, data, 0);
+		inodeBlocks.put(address, data);
+	    }
+	    reference(imap[i]);
+
+	    loadInode(inodes[i], data, imap[i] % inodesPerBlock * inodeSize);
+	}
+
+	Inode root = inodes[rootInode];
+	byte[] data = new byte[root.length];
+	readData(root, 0, data, 0, root.length);
+	directory = new Directory(data, root.length);
+    }
+
+    private void loadInode(Inode inode, byte[] data, int offset) {
+	inode.type = Lib.bytesToInt(data, offset+0);
+	inode.length = Lib.bytesToInt(data, offset+4);
+
+	int numBlocks = (inode.length + sectorSize-1) / sectorSize;
+	inode.blocks = new int[numBlocks];
+
+	if (numBlocks <= directPointers) {
+	    for (int i=0; i<numBlocks; i++)
+		inode.blocks[i] = Lib.bytesToInt(data, offset+8+i*4);
+	    return;
+	}
+
+	byte[] pointers = new byte[sectorSize];
+	inode.pointerBlocks =
+	    new int[(numBlocks + pointersPerBlock-1) / pointersPerBlock];
+	for (int k=0; k<inode.pointerBlocks.length; k++) {
+	    inode.pointerBlocks[k] = Lib.bytesToInt(data, offset+8+k*4);
+	    readBlock(inode.pointerBlocks[k], pointers, 0);
+
+	    for (int j=0; j<pointersPerBlock &&
+		     k*pointersPerBlock+j < numBlocks; j++)
+		inode.blocks[k*pointersPerBlock+j] =
+		    Lib.bytesToInt(pointers, j*4);
+	}
+    }
+
+    private Inode allocateInode(int type) {
+	for (int i=0; i<numInodes; i++) {
+	    Inode inode = inodes[i];
+	    if (i != rootInode && inode.type == typeFree) {
+		inode.type = type;
+		inode.length = 0;
+		inode.removed = false;
+		dirtyInodes.add(inode);
+		return inode;
+	    }
+	}
+
+	return null;
+    }
+
+    private void freeInode(Inode inode) {
+	for (int address : inode.blocks)
+	    kill(address);
+	for (int address : inode.pointerBlocks)
+	    kill(address);
+
+	inode.blocks = new int[0];
+	inode.pointerBlocks = new int[0];
+	inode.dirtyPointers.clear();
+	inode.type = typeFree;
+	inode.length = 0;
+	dirtyInodes.add(inode);
+    }
+
+    private boolean addEntry(String name, Inode inode) {
+	int slot = directory.add(name, inode.number);
+	if (writeEntry(slot))
+	    return true;
+
+	directory.remove(name);
+	return false;
+    }
+
+    /**
+     * Write a directory entry to the root directory's file.
+     */
+    private boolean writeEntry(int slot) {
+	int entrySize = Directory.entrySize;
+	return writeData(inodes[rootInode], slot*entrySize,
+			 directory.getData(), slot*entrySize, entrySize) ==
+	    entrySize;
+    }
+
+    /**
+     * Read from a file. Called with the lock held.
+     */
+    private int readData(Inode inode, int pos, byte[] buf, int offset,
+			 int length) {
+	if (pos < 0 || offset < 0 || length < 0 ||
+	    (long) offset + length > buf.length)
+	    return -1;
+
+	int end = (int) Math.min((long) pos + length, inode.length);
+	if (pos >= end)
+	    return 0;
+
+	int first = pos / sectorSize, last = (end-1) / sectorSize;
+	byte[] data = new byte[(last-first+1)*sectorSize];
+
+	for (int i=first; i<=last; ) {
+	    int address = inode.blocks[i];
+	    if (address == 0 || inSegmentBuffer(address)) {
+		readBlock(address, data, (i-first)*sectorSize);
+		i++;
+		continue;
+	    }
+
+	    // blocks written together are usually together in the log
+	    int count = 1;
+	    while (i+count <= last && inode.blocks[i+count] == address+count &&
+		   !inSegmentBuffer(address+count))
+		count++;
+
+	    disk.readSectors(address, count, data, (i-first)*sectorSize);
+	    i += count;
+	}
+
+	System.arraycopy(data, pos - first*sectorSize, buf, offset, end-pos);
+	return end-pos;
+    }
+
+    /**
+     * Write to a file by appending new copies of its blocks to the log.
+     * Called with the lock held.
+     */
+    private int writeData(Inode inode, int pos, byte[] buf, int offset,
+			  int length) {
+	if (pos < 0 || offset < 0 || length < 0 ||
+	    (long) offset + length > buf.length ||
+	    (long) pos + length > Integer.MAX_VALUE)
+	    return -1;
+
+	if (length == 0)
+	    return 0;
+
+	int end = pos + length;
+	int first = pos / sectorSize, last = (end-1) / sectorSize;
+	if (inode.blocks.length <= last)
+	    inode.blocks = Arrays.copyOf(inode.blocks, last+1);
+
+	byte[] block = new byte[sectorSize];
+	int written = 0;
+	for (int i=first; i<=last; i++) {
+	    int start = Math.max(pos, i*sectorSize);
+	    int stop = Math.min(end, (i+1)*sectorSize);
+
+	    if (stop - start < sectorSize)
+		readBlock(inode.blocks[i], block, 0);
+	    System.arraycopy(buf, offset + start-pos, block,
+			     start - i*sectorSize, stop-start);
+
+	    // writers leave the last few free segments to the cleaner
+	    if (this.offset == segmentSectors && !cleaning &&
+		numFree() <= reserveSegments)
+		cleanSegments();
+
+	    int address = appendBlock(inode.number, i, block, 0);
+	    if (address == -1)
+		break;
+
+	    setBlock(inode, i, address);
+	    written = stop - pos;
+	}
+
+	if (pos + written > inode.length) {
+	    inode.length = pos + written;
+	    dirtyInodes.add(inode);
+	}
+	inode.blocks = Arrays.copyOf(inode.blocks,
+				     (inode.length + sectorSize-1) / sectorSize);
+
+	if (segmentsSinceCheckpoint >= checkpointSegments && !cleaning)
+	    checkpoint();
+
+	return (written > 0) ? written : -1;
+    }
+
+    /**
+     * Point a file's block at a new address, killing the old one.
+     */
+    private void setBlock(Inode inode, int index, int address) {
+	kill(inode.blocks[index]);
+	inode.blocks[index] = address;
+
+	inode.dirtyPointers.add(index / pointersPerBlock);
+	dirtyInodes.add(inode);
+    }
+
+    private boolean inSegmentBuffer(int address) {
+	return address / segmentSectors == segment &&
+	    address % segmentSectors >= flushed;
+    }
+
+    /**
+     * Read a block from the log, or zeros for a hole.
+     */
+    private void readBlock(int address, byte[] buf, int offset) {
+	if (address == 0)
+	    Arrays.fill(buf, offset, offset+sectorSize, (byte) 0);
+	else if (inSegmentBuffer(address))
+	    System.arraycopy(segmentBuffer, (address % segmentSectors)*sectorSize,
+			     buf, offset, sectorSize);
+	else
+	    disk.readSectors(address, 1, buf, offset);
+    }
+
+    /**
+     * Append a block to the log.
+     *
+     * @return	the block's address, or -1 if the disk is full.
+     */
+    private int appendBlock(int owner, int index, byte[] buf, int offset) {
+	if (this.offset == segmentSectors && !nextSegment())
+	    return -1;
+
+	int address = segment*segmentSectors + this.offset;
+	System.arraycopy(buf, offset, segmentBuffer, this.offset*sectorSize,
+			 sectorSize);
+	Lib.bytesFromInt(segmentBuffer, this.offset*8, owner);
+	Lib.bytesFromInt(segmentBuffer, this.offset*8+4, index);
+	this.offset++;
+
+	live[segment]++;
+	written[segment] = Machine.timer().getTime();
+	return address;
+    }
+
+    /**
+     * Note that a block in the log is no longer needed.
+     */
+    private void kill(int address) {
+	if (address == 0)
+	    return;
+
+	int s = address / segmentSectors;
+	live[s]--;
+	Lib.assertTrue(live[s] >= 0);
+	if (live[s] == 0 && s != segment)
+	    pendingFree[s] = true;
+    }
+
+    /**
+     * Write the current segment out and start filling a free one.
+     *
+     * @return	<tt>false</tt> if there are no free segments.
+     */
+    private boolean nextSegment() {
+	int next = -1;
+	for (int i=1; i<numSegments && next == -1; i++) {
+	    int s = (segment + i) % numSegments;
+	    if (isFree(s))
+		next = s;
+	}
+	if (next == -1)
+	    return false;
+
+	flushSegment();
+	if (live[segment] == 0)
+	    pendingFree[segment] = true;
+
+	segment = next;
+	offset = 1;
+	flushed = 0;
+	Arrays.fill(segmentBuffer, (byte) 0);
+
+	Machine.stats().numLogSegmentsWritten++;
+	segmentsSinceCheckpoint++;
+	if (numFree() < cleanThreshold)
+	    cleanNeeded.wake();
+
+	return true;
+    }
+
+    /**
+     * Write whatever of the current segment isn't on the disk yet, along
+     * with its summary.
+     */
+    private void flushSegment() {
+	if (flushed == offset)
+	    return;
+
+	int first = segment*segmentSectors;
+	if (flushed > 1)
+	    disk.writeSectors(first, 1, segmentBuffer, 0);
+	else
+	    flushed = 0;
+	disk.writeSectors(first + flushed, offset - flushed, segmentBuffer,
+			  flushed*sectorSize);
+
+	flushed = offset;
+    }
+
+    private boolean isFree(int s) {
+	return s != 0 && s != segment && live[s] == 0 && !pendingFree[s];
+    }
+
+    private int numFree() {
+	int count = 0;
+	for (int s=0; s<numSegments; s++) {
+	    if (isFree(s))
+		count++;
+	}
+
+	return count;
+    }
+
+    /**
+     * Write out the inode map and everything it leads to, then record a
+     * checkpoint. Called with the lock held.
+     */
+    private void checkpoint() {
+	writeInodes();
+
+	byte[] block = new byte[sectorSize];
+	for (int k : dirtyImap) {
+	    Arrays.fill(block, (byte) 0);
+	    for (int j=0; j<pointersPerBlock &&
+		     k*pointersPerBlock+j < numInodes; j++)
+		Lib.bytesFromInt(block, j*4, imap[k*pointersPerBlock+j]);
+
+	    int address = appendBlock(ownerImap, k, block, 0);
+	    Lib.assertTrue(address != -1, "log full");
+	    kill(imapAddresses[k]);
+	    imapAddresses[k] = address;
+	}
+	dirtyImap.clear();
+
+	flushSegment();
+
+	byte[] region = new byte[segmentSectors/2*sectorSize];
+	checkpointSeq++;
+	Lib.bytesFromInt(region, 0, magic);
+	Lib.bytesFromInt(region, 4, checkpointSeq);
+	Lib.bytesFromInt(region, 8, numSectors);
+	Lib.bytesFromInt(region, 12, numInodes);
+	Lib.bytesFromInt(region, 16, segment);
+	Lib.bytesFromInt(region, 20, offset);
+
+	int pos = 24;
+	for (int i=0; i<imapBlocks; i++, pos+=4)
+	    Lib.bytesFromInt(region, pos, imapAddresses[i]);
+	for (int i=0; i<numSegments; i++, pos+=4)
+	    Lib.bytesFromInt(region, pos, live[i]);
+
+	int sectors = (checkpointSize() + sectorSize-1) / sectorSize;
+	disk.writeSectors((checkpointSeq % 2) * segmentSectors/2, sectors,
+			  region, 0);
+
+	// no checkpoint refers to these any more
+	Arrays.fill(pendingFree, false);
+
+	segmentsSinceCheckpoint = 0;
+	Machine.stats().numLogCheckpoints++;
+    }
+
+    /**
+     * Append the dirty pointer blocks and inodes to the log, and update the
+     * inode map.
+     */
+    private void writeInodes() {
+	ArrayList<Inode> toWrite = new ArrayList<Inode>();
+	byte[] block = new byte[sectorSize];
+
+	for (Inode inode : dirtyInodes) {
+	    if (inode.type == typeFree) {
+		dereference(imap[inode.number]);
+		imap[inode.number] = 0;
+		dirtyImap.add(inode.number / pointersPerBlock);
+		continue;
+	    }
+
+	    int numBlocks = inode.blocks.length;
+	    if (numBlocks > directPointers) {
+		int needed = (numBlocks + pointersPerBlock-1) / pointersPerBlock;
+		for (int k=inode.pointerBlocks.length; k<needed; k++)
+		    inode.dirtyPointers.add(k);
+		if (inode.pointerBlocks.length < needed)
+		    inode.pointerBlocks = Arrays.copyOf(inode.pointerBlocks,
+							needed);
+
+		for (int k : inode.dirtyPointers) {
+		    if (k >= needed)
+			continue;
+
+		    Arrays.fill(block, (byte) 0);
+		    for (int j=0; j<pointersPerBlock &&
+			     k*pointersPerBlock+j < numBlocks; j++)
+			Lib.bytesFromInt(block, j*4,
+					 inode.blocks[k*pointersPerBlock+j]);
+
+		    int address = appendBlock(inode.number, -1-k, block, 0);
+		    Lib.assertTrue(address != -1, "log full");
+		    kill(inode.pointerBlocks[k]);
+		    inode.pointerBlocks[k] = address;
+		}
+	    }
+	    inode.dirtyPointers.clear();
+
+	    toWrite.add(inode);
+	}
+	dirtyInodes.clear();
+
+	for (int i=0; i<toWrite.size(); i+=inodesPerBlock) {
+	    Arrays.fill(block, (byte) 0);
+
+	    int count = Math.min(inodesPerBlock, toWrite.size() - i);
+	    for (int j=0; j<count; j++)
+		storeInode(toWrite.get(i+j), block, j*inodeSize);
+
+	    int address = appendBlock(ownerInodes, 0, block, 0);
+	    Lib.assertTrue(address != -1, "log full");
+
+	    for (int j=0; j<count; j++) {
+		Inode inode = toWrite.get(i+j);
+		dereference(imap[inode.number]);
+		imap[inode.number] = address*inodesPerBlock + j;
+		reference(imap[inode.number]);
+		dirtyImap.add(inode.number / pointersPerBlock);
+	    }
+	}
+    }
+
+    private void storeInode(Inode inode, byte[] buf, int offset) {
+	Lib.bytesFromInt(buf, offset+0, inode.type);
+	Lib.bytesFromInt(buf, offset+4, inode.length);
+
+	int[] pointers = (inode.blocks.length > directPointers) ?
+	    inode.pointerBlocks : inode.blocks;
+	for (int i=0; i<pointers.length; i++)
+	    Lib.bytesFromInt(buf, offset+8+i*4, pointers[i]);
+    }
+
+    /** Count another inode in an inode block. */
+    private void reference(int entry) {
+	int address = entry / inodesPerBlock;
+	Integer count = inodeBlockRefs.get(address);
+	inodeBlockRefs.put(address, (count == null) ? 1 : count+1);
+    }
+
+    /** Count one less inode in an inode block, which dies with the last. */
+    private void dereference(int entry) {
+	if (entry == 0)
+	    return;
+
+	int address = entry / inodesPerBlock;
+	int count = inodeBlockRefs.get(address) - 1;
+	if (count == 0) {
+	    inodeBlockRefs.remove(address);
+	    kill(address);
+	}
+	else {
+	    inodeBlockRefs.put(address, count);
+	}
+    }
+
+    private void cleanLoop() {
+	lock.acquire();
+	while (true) {
+	    if (numFree() >= cleanThreshold || cleanSegments() == 0)
+		cleanNeeded.sleep();
+	}
+    }
+
+    /**
+     * Clean segments until enough are free, then checkpoint so that they
+     * can be reused. Called with the lock held.
+     *
+     * @return	the number of segments cleaned.
+     */
+    private int cleanSegments() {
+	cleaning = true;
+
+	// a victim's metadata stays live until the checkpoint rewrites it
+	boolean[] cleaned = new boolean[numSegments];
+	int numCleaned = 0;
+	while (numFree() + numPendingFree() < cleanThreshold*2) {
+	    int victim = pickVictim(cleaned);
+	    if (victim == -1 || !cleanSegment(victim))
+		break;
+
+	    cleaned[victim] = true;
+	    numCleaned++;
+	}
+
+	checkpoint();
+	cleaning = false;
+
+	Machine.stats().numLogSegmentsCleaned += numCleaned;
+	return numCleaned;
+    }
+
+    private int numPendingFree() {
+	int count = 0;
+	for (int s=0; s<numSegments; s++) {
+	    if (pendingFree[s])
+		count++;
+	}
+
+	return count;
+    }
+
+    /**
+     * Return the segment whose cleaning gives the most for its cost, or -1
+     * if none is worth cleaning. Cleaning a segment with a fraction
+     * <i>u</i> of its blocks live costs reading it and writing <i>u</i> of
+     * it back, and frees <i>1-u</i> of a segment, which counts for more the
+     * longer it has gone unchanged.
+     *
+     * @param	skip	the segments already cleaned this time.
+     */
+    private int pickVictim(boolean[] skip) {
+	long now = Machine.timer().getTime();
+
+	int victim = -1;
+	double best = 0;
+	for (int s=1; s<numSegments; s++) {
+	    if (s == segment || skip[s] || live[s] == 0 ||
+		live[s] >= blocksPerSegment)
+		continue;
+
+	    double u = (double) live[s] / blocksPerSegment;
+	    double benefit = (1-u) * (now - written[s] + 1) / (1+u);
+	    if (benefit > best) {
+		victim = s;
+		best = benefit;
+	    }
+	}
+
+	return victim;
+    }
+
+    /**
+     * Move a segment's live blocks to the end of the log. Metadata blocks
+     * are only marked dirty, to be rewritten by the next checkpoint.
+     *
+     * @return	<tt>false</tt> if the log filled up.
+     */
+    private boolean cleanSegment(int victim) {
+	byte[] data = new byte[segmentSectors*sectorSize];
+	disk.readSectors(victim*segmentSectors, segmentSectors, data, 0);
+
+	for (int i=1; i<segmentSectors; i++) {
+	    int address = victim*segmentSectors + i;
+	    int owner = Lib.bytesToInt(data, i*8);
+	    int index = Lib.bytesToInt(data, i*8+4);
+
+	    if (owner == ownerInodes) {
+		for (int j=0; j<numInodes; j++) {
+		    if (imap[j] != 0 && imap[j] / inodesPerBlock == address)
+			dirtyInodes.add(inodes[j]);
+		}
+	    }
+	    else if (owner == ownerImap) {
+		if (index >= 0 && index < imapBlocks &&
+		    imapAddresses[index] == address)
+		    dirtyImap.add(index);
+	    }
+	    else if (owner >= 0 && owner < numInodes) {
+		Inode inode = inodes[owner];
+		if (inode.type == typeFree)
+		    continue;
+
+		if (index >= 0) {
+		    if (index < inode.blocks.length &&
+			inode.blocks[index] == address) {
+			int moved = appendBlock(owner, index, data, i*sectorSize);
+			if (moved == -1)
+			    return false;
+
+			setBlock(inode, index, moved);
+			Machine.stats().numLogBlocksCleaned++;
+		    }
+		}
+		else {
+		    int k = -1-index;
+		    if (k < inode.pointerBlocks.length &&
+			inode.pointerBlocks[k] == address) {
+			inode.dirtyPointers.add(k);
+			dirtyInodes.add(inode);
+		    }
+		}
+	    }
+	}
+
+	return true;
+    }
+
+    private void release(Inode inode) {
+	lock.acquire();
+	if (--inode.refCount == 0 && inode.removed)
+	    freeInode(inode);
+	lock.release();
+    }
+
+    /**
+     * Compare the time it takes to overwrite random blocks of a few files
+     * here and in a <tt>DiskFileSystem</tt>, and to write as much to the
+     * disk sequentially. The random writes cover the disk several times
+     * over, so the cleaner has to keep up. Formats the disk.
+     */
+    public static void selfTest() {
+	final SynchDisk disk = ThreadedKernel.synchDisk;
+	final int numBlocks = numRandomWrites*numWriters;
+
+	long start = Machine.timer().getTime();
+	byte[] buf = new byte[segmentSectors*sectorSize];
+	for (int i=0; i<numBlocks; i+=segmentSectors) {
+	    disk.writeSectors(i % (disk.getNumSectors() - segmentSectors),
+			      segmentSectors, buf, 0);
+	}
+	long sequential = Machine.timer().getTime() - start;
+
+	int segments = Machine.stats().numLogSegmentsWritten;
+	int cleaned = Machine.stats().numLogSegmentsCleaned;
+	long log = benchmark(new LogFileSystem(disk, true));
+	segments = Machine.stats().numLogSegmentsWritten - segments;
+	cleaned = Machine.stats().numLogSegmentsCleaned - cleaned;
+
+	long update = benchmark(new DiskFileSystem(disk, true, 0, true));
+
+	System.out.println("LogFileSystem: " + numBlocks +
+			   " random block writes in " + log + " ticks (" +
+			   segments + " segments written, " + cleaned +
+			   " cleaned), " + update + " in place, " +
+			   sequential + " sequentially");
+    }
+
+    private static long benchmark(final FileSystem fs) {
+	final Semaphore finished = new Semaphore(0);
+	final int fileSize = 256*1024;
+
+	byte[] buf = new byte[fileSize];
+	for (int i=0; i<numWriters; i++) {
+	    OpenFile file = fs.open("file" + i, true);
+	    file.write(0, buf, 0, fileSize);
+	    file.close();
+	}
+	if (fs instanceof DurableFileSystem)
+	    ((DurableFileSystem) fs).sync();
+
+	long start = Machine.timer().getTime();
+
+	for (int i=0; i<numWriters; i++) {
+	    final int id = i;
+	    new KThread(new Runnable() {
+		    public void run() {
+			OpenFile file = fs.open("file" + id, false);
+			byte[] block = new byte[sectorSize];
+			for (int j=0; j<numRandomWrites; j++) {
+			    Arrays.fill(block, (byte) j);
+			    int pos = Lib.random(fileSize/sectorSize)*sectorSize;
+			    Lib.assertTrue(file.write(pos, block, 0, sectorSize)
+					   == sectorSize);
+			}
+			file.close();
+			finished.V();
+		    }
+		}).setName("writer " + i).fork();
+	}
+	for (int i=0; i<numWriters; i++)
+	    finished.P();
+
+	if (fs instanceof DurableFileSystem)
+	    ((DurableFileSystem) fs).sync();
+
+	long ticks = Machine.timer().getTime() - start;
+
+	for (int i=0; i<numWriters; i++)
+	    fs.remove("file" + i);
+
+	return ticks;
+    }
+
+    /** A file as the file system keeps it. */
+    private static class Inode {
+	Inode(int number) {
+	    this.number = number;
+	}
+
+	int number;
+	int type = typeFree;
+	int length = 0;
+	/** The address in the log of each block, or 0 for a hole. */
+	int[] blocks = new int[0];
+	/** The addresses of the blocks of pointers to larger files' blocks. */
+	int[] pointerBlocks = new int[0];
+	TreeSet<Integer> dirtyPointers = new TreeSet<Integer>();
+
+	int refCount = 0;
+	boolean removed = false;
+    }
+
+    private class LogOpenFile extends OpenFileWithPosition {
+	LogOpenFile(String name, Inode inode) {
+	    super(LogFileSystem.this, name);
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null)
+		return -1;
+
+	    lock.acquire();
+	    int amount = readData(inode, pos, buf, offset, length);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null)
+		return -1;
+
+	    lock.acquire();
+	    int amount = writeData(inode, pos, buf, offset, length);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    if (inode == null)
+		return -1;
+
+	    return inode.length;
+	}
+
+	public void close() {
+	    if (inode != null) {
+		release(inode);
+		inode = null;
+	    }
+	}
+
+	private Inode inode;
+    }
+
+    private SynchDisk disk;
+    private boolean format;
+    private boolean mounted = false;
+    private int cleanThreshold;
+
+    private Lock lock = new Lock();
+    private Condition2 cleanNeeded = new Condition2(lock);
+    private boolean cleaning = false;
+
+    private int numSectors, numSegments, numInodes, imapBlocks;
+    private Inode[] inodes;
+    private Directory directory;
+    private HashSet<Inode> dirtyInodes = new HashSet<Inode>();
+
+    /** Where each inode is, as its block's address times 8 plus its slot. */
+    private int[] imap;
+    private int[] imapAddresses;
+    private TreeSet<Integer> dirtyImap = new TreeSet<Integer>();
+    private HashMap<Integer, Integer> inodeBlockRefs =
+	new HashMap<Integer, Integer>();
+
+    /** The live blocks in each segment, and when it was last written to. */
+    private int[] live;
+    private long[] written;
+    /** Segments with nothing live, which the last checkpoint refers to. */
+    private boolean[] pendingFree;
+
+    /** The segment being filled, the next sector in it, and the first not
+     *  yet on the disk. */
+    private int segment, offset, flushed;
+    private byte[] segmentBuffer = new byte[segmentSectors*sectorSize];
+    private int segmentsSinceCheckpoint = 0;
+    private int checkpointSeq;
+
+    private static final int sectorSize = Disk.sectorSize;
+    private static final int segmentSectors = Disk.sectorsPerTrack;
+    private static final int blocksPerSegment = segmentSectors - 1;
+    private static final int magic = 0x4C4F4753;
+
+    private static final int inodeSize = 64;
+    private static final int inodesPerBlock = sectorSize / inodeSize;
+    private static final int directPointers = (inodeSize - 8) / 4;
+    private static final int pointersPerBlock = sectorSize / 4;
+    private static final int rootInode = 0;
+    private static final int typeFree = 0, typeFile = 1, typeDirectory = 2;
+
+    /** Summary owners for blocks that aren't a file's. */
+    private static final int ownerInodes = -1, ownerImap = -2;
+
+    private static final int reserveSegments = 2;
+    private static final int checkpointSegments = 8;
+
+    private static final int numWriters = 4, numRandomWrites = 1024;
+}
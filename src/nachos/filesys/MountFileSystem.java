@@ -0,0 +1,97 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import nachos.machine.*;
+
+/**
+ * A file system made of others: names starting with a mounted prefix, such
+ * as <tt>/tmp/</tt>, go to the file system mounted there with the prefix
+ * taken off, and every other name goes to the root file system. Open files
+ * come straight from the file system holding them.
+ */
+public class MountFileSystem implements DurableFileSystem {
+    /**
+     * Allocate a new mount table.
+     *
+     * @param	root	the file system holding names under no mount.
+     */
+    public MountFileSystem(FileSystem root) {
+	this.root = root;
+    }
+
+    /**
+     * Mount a file system. If prefixes overlap, the longest one that matches
+     * a name is used.
+     *
+     * @param	prefix		the prefix of the names it holds.
+     * @param	fileSystem	the file system to mount.
+     */
+    public void mount(String prefix, FileSystem fileSystem) {
+	Lib.assertTrue(prefix != null && prefix.length() > 0);
+
+	prefixes.add(prefix);
+	fileSystems.add(fileSystem);
+    }
+
+    /**
+     * Return the root file system.
+     */
+    public FileSystem getFileSystem() {
+	return root;
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	int mount = find(name);
+	if (mount == -1)
+	    return root.open(name, truncate);
+
+	return fileSystems.get(mount).open(strip(name, mount), truncate);
+    }
+
+    public boolean remove(String name) {
+	int mount = find(name);
+	if (mount == -1)
+	    return root.remove(name);
+
+	return fileSystems.get(mount).remove(strip(name, mount));
+    }
+
+    /**
+     * Sync every file system that holds writes back.
+     */
+    public void sync() {
+	if (root instanceof DurableFileSystem)
+	    ((DurableFileSystem) root).sync();
+
+	for (FileSystem fileSystem : fileSystems) {
+	    if (fileSystem instanceof DurableFileSystem)
+		((DurableFileSystem) fileSystem).sync();
+	}
+    }
+
+    /**
+     * Return the mount holding <i>name</i>, or -1 if it is the root's.
+     */
+    private int find(String name) {
+	int best = -1;
+	if (name == null)
+	    return best;
+
+	for (int i=0; i<prefixes.size(); i++) {
+	    if (name.startsWith(prefixes.get(i)) &&
+		(best == -1 ||
+		 prefixes.get(i).length() > prefixes.get(best).length()))
+		best = i;
+	}
+
+	return best;
+    }
+
+    private String strip(String name, int mount) {
+	return name.substring(prefixes.get(mount).length());
+    }
+
+    private FileSystem root;
+    private ArrayList<String> prefixes = new ArrayList<String>();
+    private ArrayList<FileSystem> fileSystems = new ArrayList<FileSystem>();
+}
@@ -0,0 +1,242 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import nachos.machine.*;
+
+/**
+ * A file system kept in memory. Each file is a list of 4 KB chunks, added as
+ * the file grows so that growing never copies what is already there, with
+ * holes left by writing past the end read as zeros until written. Nothing
+ * is delayed: each operation runs with interrupts disabled, costing only
+ * the kernel tick of enabling them again, and reads copy straight from a
+ * file's chunks into the caller's buffer, which for the read syscall is main
+ * memory.
+ *
+ * <p>
+ * As the kernel file system, the shell program and the files listed in
+ * <tt>RamFileSystem.importFiles</tt> are copied in from the stub file system
+ * when it is first used. Setting <tt>ThreadedKernel.mountTmp</tt> instead
+ * mounts an empty one under <tt>/tmp/</tt>, alongside the kernel file
+ * system. Either way its contents are lost at halt.
+ */
+public class RamFileSystem implements FileSystem {
+    /**
+     * Allocate a new RAM file system holding the files a user kernel needs.
+     */
+    public RamFileSystem() {
+	this(true);
+    }
+
+    /**
+     * Allocate a new RAM file system.
+     *
+     * @param	importFiles	<tt>true</tt> to copy in the files a user
+     *				kernel needs when it is first used, or
+     *				<tt>false</tt> to start out empty.
+     */
+    public RamFileSystem(boolean importFiles) {
+	imported = !importFiles;
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	importFiles();
+
+	if (name == null || name.length() == 0)
+	    return null;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	RamFile file = files.get(name);
+	if (file == null && truncate) {
+	    file = new RamFile();
+	    files.put(name, file);
+	}
+	else if (file != null && truncate) {
+	    file.chunks.clear();
+	    file.length = 0;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return (file == null) ? null : new RamOpenFile(name, file);
+    }
+
+    public boolean remove(String name) {
+	importFiles();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// files still open keep their contents
+	boolean removed = files.remove(name) != null;
+
+	Machine.interrupt().restore(intStatus);
+
+	return removed;
+    }
+
+    private void importFiles() {
+	if (!imported) {
+	    imported = true;
+	    DiskFileSystem.importFiles(this, "RamFileSystem.importFiles");
+	}
+    }
+
+    /**
+     * Write and read back files through a RAM file system, checking holes,
+     * truncation and removing a file that is still open, then time the same
+     * file written and read through the RAM and stub file systems.
+     */
+    public static void selfTest() {
+	RamFileSystem fs = new RamFileSystem(false);
+
+	OpenFile file = fs.open("sparse", true);
+	byte[] buf = new byte[3*chunkSize];
+	Arrays.fill(buf, (byte) 7);
+	Lib.assertTrue(file.write(chunkSize/2, buf, 0, 10) == 10);
+	Lib.assertTrue(file.write(2*chunkSize+1, buf, 0, 10) == 10);
+	Lib.assertTrue(file.length() == 2*chunkSize+11);
+
+	byte[] check = new byte[buf.length];
+	Lib.assertTrue(file.read(0, check, 0, check.length) == file.length());
+	for (int i=0; i<file.length(); i++) {
+	    boolean written = (i >= chunkSize/2 && i < chunkSize/2+10) ||
+		i > 2*chunkSize;
+	    Lib.assertTrue(check[i] == (written ? 7 : 0));
+	}
+
+	Lib.assertTrue(fs.remove("sparse"));
+	Lib.assertTrue(fs.open("sparse", false) == null);
+	Lib.assertTrue(file.read(chunkSize/2, check, 0, 1) == 1 &&
+		       check[0] == 7);
+	file.close();
+
+	file = fs.open("truncated", true);
+	file.write(0, buf, 0, buf.length);
+	file.close();
+	file = fs.open("truncated", true);
+	Lib.assertTrue(file.length() == 0 && file.read(0, check, 0, 1) == 0);
+	file.close();
+	fs.remove("truncated");
+
+	System.out.println("RamFileSystem: " + benchmark(fs) +
+			   " ticks to write and read 256 KB, against " +
+			   benchmark(Machine.stubFileSystem()) +
+			   " through the stub");
+    }
+
+    private static long benchmark(FileSystem fs) {
+	final int fileSize = 256*1024, chunk = 4096;
+	String name = "ramBench.tmp";
+	byte[] buf = new byte[chunk];
+	long start = Machine.timer().getTime();
+
+	OpenFile file = fs.open(name, true);
+	for (int pos=0; pos<fileSize; pos+=chunk) {
+	    Arrays.fill(buf, (byte) (pos/chunk));
+	    Lib.assertTrue(file.write(pos, buf, 0, chunk) == chunk);
+	}
+	for (int pos=0; pos<fileSize; pos+=chunk) {
+	    Lib.assertTrue(file.read(pos, buf, 0, chunk) == chunk);
+	    Lib.assertTrue(buf[0] == (byte) (pos/chunk));
+	}
+	file.close();
+	fs.remove(name);
+
+	return Machine.timer().getTime() - start;
+    }
+
+    /** A file's contents, shared by every open file for it. */
+    private static class RamFile {
+	/** The file's chunks, or <tt>null</tt> for a chunk never written. */
+	ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+	int length = 0;
+    }
+
+    private class RamOpenFile extends OpenFileWithPosition {
+	RamOpenFile(String name, RamFile file) {
+	    super(RamFileSystem.this, name);
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || offset < 0 || length < 0 ||
+		(long) offset + length > buf.length)
+		return -1;
+
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    int end = (int) Math.min((long) pos + length, file.length);
+	    for (int at=pos; at<end; ) {
+		int index = at / chunkSize, within = at % chunkSize;
+		int amount = Math.min(chunkSize - within, end - at);
+
+		byte[] chunk = file.chunks.get(index);
+		if (chunk == null)
+		    Arrays.fill(buf, offset, offset+amount, (byte) 0);
+		else
+		    System.arraycopy(chunk, within, buf, offset, amount);
+
+		at += amount;
+		offset += amount;
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+
+	    return Math.max(0, end - pos);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || offset < 0 || length < 0 ||
+		(long) offset + length > buf.length ||
+		(long) pos + length > Integer.MAX_VALUE)
+		return -1;
+
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    int end = pos + length;
+	    while (file.chunks.size()*chunkSize < end)
+		file.chunks.add(null);
+
+	    for (int at=pos; at<end; ) {
+		int index = at / chunkSize, within = at % chunkSize;
+		int amount = Math.min(chunkSize - within, end - at);
+
+		byte[] chunk = file.chunks.get(index);
+		if (chunk == null) {
+		    chunk = new byte[chunkSize];
+		    file.chunks.set(index, chunk);
+		}
+		System.arraycopy(buf, offset, chunk, within, amount);
+
+		at += amount;
+		offset += amount;
+	    }
+
+	    file.length = Math.max(file.length, end);
+
+	    Machine.interrupt().restore(intStatus);
+
+	    return length;
+	}
+
+	public int length() {
+	    if (file == null)
+		return -1;
+
+	    return file.length;
+	}
+
+	public void close() {
+	    file = null;
+	}
+
+	private RamFile file;
+    }
+
+    private HashMap<String, RamFile> files = new HashMap<String, RamFile>();
+    private boolean imported;
+
+    private static final int chunkSize = 4096;
+}
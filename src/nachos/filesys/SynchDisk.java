@@ -0,0 +1,303 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Provides a simple, synchronous interface to the disk. Threads block in
+ * <tt>readSectors()</tt> and <tt>writeSectors()</tt> until their request is
+ * done, and meanwhile their requests wait in a queue.
+ *
+ * <p>
+ * Whenever the disk finishes a request, the next one is picked from the
+ * queue by the policy named in <tt>SynchDisk.scheduler</tt>:
+ *
+ * <ul>
+ * <li><tt>fcfs</tt>: in the order they arrived;
+ * <li><tt>scan</tt>: the elevator algorithm, taking requests in the order of
+ * their sectors while the head sweeps one way, then turning around;
+ * <li><tt>clook</tt>, the default: like <tt>scan</tt>, but only sweeping
+ * upwards, and jumping back to the lowest request at the end of a sweep.
+ * </ul>
+ *
+ * <p>
+ * A request that continues or precedes one of the same kind already queued
+ * is merged into it, so the disk serves both with a single transfer.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new synchronous disk.
+     *
+     * @param	disk	the disk to use.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+
+	String policy = Config.getString("SynchDisk.scheduler", "clook");
+	if (policy.equals("fcfs"))
+	    scheduler = fcfs;
+	else if (policy.equals("scan"))
+	    scheduler = scan;
+	else
+	    scheduler = clook;
+
+	disk.setInterruptHandler(new Runnable() {
+		public void run() { requestDone(); }
+	    });
+    }
+
+    /**
+     * Read consecutive sectors into <i>buf</i>, and return when done.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	buf	the buffer to read into.
+     * @param	offset	the first byte of <i>buf</i> to read into.
+     */
+    public void readSectors(int sector, int count, byte[] buf, int offset) {
+	transfer(sector, count, buf, offset, false);
+    }
+
+    /**
+     * Write consecutive sectors from <i>buf</i>, and return when done.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	buf	the buffer to write from.
+     * @param	offset	the first byte of <i>buf</i> to write from.
+     */
+    public void writeSectors(int sector, int count, byte[] buf, int offset) {
+	transfer(sector, count, buf, offset, true);
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     */
+    public int getNumSectors() {
+	return disk.getNumSectors();
+    }
+
+    private void transfer(int sector, int count, byte[] buf, int offset,
+			  boolean write) {
+	Lib.assertTrue(count > 0 && sector >= 0 &&
+		       sector+count <= disk.getNumSectors());
+	Lib.assertTrue(offset >= 0 &&
+		       offset + count*Disk.sectorSize <= buf.length);
+
+	Part part = new Part(sector, count, buf, offset);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Machine.stats().numDiskRequests++;
+	if (!merge(part, write)) {
+	    Request request = new Request(write);
+	    request.add(part);
+	    queue.add(request);
+	}
+
+	if (current == null)
+	    dispatch();
+
+	Machine.interrupt().restore(intStatus);
+
+	part.done.P();
+    }
+
+    /**
+     * Merge a new part into a queued request of the same kind that it
+     * continues or precedes, if the result isn't too large. Called with
+     * interrupts disabled.
+     *
+     * @return	<tt>true</tt> if the part was merged.
+     */
+    private boolean merge(Part part, boolean write) {
+	for (Request request : queue) {
+	    if (request.write != write ||
+		request.count + part.count > maxMergeSectors)
+		continue;
+
+	    if (request.sector + request.count == part.sector ||
+		part.sector + part.count == request.sector) {
+		request.add(part);
+		Machine.stats().numDiskRequestsMerged++;
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Pick the next request and start the disk on it. Called with
+     * interrupts disabled.
+     */
+    private void dispatch() {
+	if (queue.isEmpty())
+	    return;
+
+	current = queue.remove(pick());
+
+	int trackFrom = headSector / Disk.sectorsPerTrack;
+	int trackTo = current.sector / Disk.sectorsPerTrack;
+	Machine.stats().numTracksSeeked += Math.abs(trackTo - trackFrom);
+	if (trackTo != trackFrom)
+	    Machine.stats().numDiskSeeks++;
+	Machine.stats().numDiskTransfers++;
+
+	byte[] data = new byte[current.count*Disk.sectorSize];
+	if (current.write) {
+	    for (Part part : current.parts) {
+		System.arraycopy(part.buf, part.offset, data,
+				 (part.sector - current.sector)*Disk.sectorSize,
+				 part.count*Disk.sectorSize);
+	    }
+	    disk.writeRequest(current.sector, current.count, data, 0);
+	}
+	else {
+	    disk.readRequest(current.sector, current.count, data, 0);
+	}
+
+	current.data = data;
+    }
+
+    /**
+     * Return the index in the queue of the request to serve next. Called
+     * with interrupts disabled.
+     */
+    private int pick() {
+	if (scheduler == fcfs)
+	    return 0;
+
+	int position = headSector;
+	while (true) {
+	    // the nearest request in the direction of the sweep
+	    int best = -1;
+	    for (int i=0; i<queue.size(); i++) {
+		int distance = queue.get(i).sector - position;
+		if (!sweepingUp)
+		    distance = -distance;
+		if (distance >= 0 && (best == -1 || distance <
+				      Math.abs(queue.get(best).sector -
+					       position)))
+		    best = i;
+	    }
+	    if (best != -1)
+		return best;
+
+	    // the end of a sweep: turn around, or go back to the start
+	    if (scheduler == scan)
+		sweepingUp = !sweepingUp;
+	    else
+		position = 0;
+	}
+    }
+
+    private void requestDone() {
+	Request request = current;
+	current = null;
+
+	if (!request.write) {
+	    for (Part part : request.parts) {
+		System.arraycopy(request.data,
+				 (part.sector - request.sector)*Disk.sectorSize,
+				 part.buf, part.offset,
+				 part.count*Disk.sectorSize);
+	    }
+	}
+
+	headSector = request.sector + request.count - 1;
+
+	for (Part part : request.parts)
+	    part.done.V();
+
+	dispatch();
+    }
+
+    /**
+     * Time a batch of threads hammering the disk: half read sectors at
+     * random, and the other half read one region in interleaved order, so
+     * that their requests can be merged. Compare the elapsed ticks under
+     * the different <tt>SynchDisk.scheduler</tt> policies.
+     */
+    public static void selfTest() {
+	final SynchDisk synchDisk = ThreadedKernel.synchDisk;
+	final int numThreads = 8, numReads = 32;
+	final int numSectors = synchDisk.getNumSectors();
+	final Semaphore finished = new Semaphore(0);
+
+	long start = Machine.timer().getTime();
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    final int id = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			byte[] buf = new byte[Disk.sectorSize];
+			for (int j=0; j<numReads; j++) {
+			    int sector = (id % 2 == 0) ?
+				Lib.random(numSectors) :
+				numSectors/2 + j*numThreads/2 + id/2;
+			    synchDisk.readSectors(sector, 1, buf, 0);
+			}
+			finished.V();
+		    }
+		}).setName("disk test " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    finished.P();
+
+	System.out.println("SynchDisk: " + numThreads*numReads + " reads in "
+			   + (Machine.timer().getTime() - start) + " ticks, "
+			   + Machine.stats().numDiskTransfers + " transfers, "
+			   + Machine.stats().numDiskRequestsMerged + " merged, "
+			   + Machine.stats().numTracksSeeked + " tracks seeked");
+    }
+
+    /** Part of a request, as a caller made it. */
+    private static class Part {
+	Part(int sector, int count, byte[] buf, int offset) {
+	    this.sector = sector;
+	    this.count = count;
+	    this.buf = buf;
+	    this.offset = offset;
+	}
+
+	int sector, count;
+	byte[] buf;
+	int offset;
+	Semaphore done = new Semaphore(0);
+    }
+
+    /** A run of consecutive sectors for the disk to transfer at once. */
+    private static class Request {
+	Request(boolean write) {
+	    this.write = write;
+	}
+
+	void add(Part part) {
+	    if (parts.isEmpty() || part.sector < sector)
+		sector = part.sector;
+	    count += part.count;
+	    parts.add(part);
+	}
+
+	boolean write;
+	int sector, count = 0;
+	ArrayList<Part> parts = new ArrayList<Part>();
+	byte[] data;
+    }
+
+    private Disk disk;
+    private int scheduler;
+
+    private ArrayList<Request> queue = new ArrayList<Request>();
+    private Request current = null;
+    private int headSector = 0;
+    private boolean sweepingUp = true;
+
+    private static final int fcfs = 0, scan = 1, clook = 2;
+    private static final int maxMergeSectors = 64;
+}
@@ -0,0 +1,212 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A simulated disk, backed by a file on the host. The disk is an array of
+ * <tt>sectorSize</tt>-byte sectors, laid out <tt>sectorsPerTrack</tt> to a
+ * track, with the first sector of every track under the head at the same
+ * moment.
+ *
+ * <p>
+ * The disk handles one request at a time and raises an interrupt when it is
+ * done. How long a request takes depends on where the head is: the head
+ * first seeks to the request's track, then waits for its first sector to
+ * rotate under it, then transfers each sector as it passes. Seeking one
+ * track takes a tenth of <tt>Stats.SeekTime</tt>, and seeking across the
+ * whole disk takes all of it; the disk turns once every
+ * <tt>Stats.RotationTime</tt> ticks.
+ *
+ * <p>
+ * <tt>nachos.conf</tt> gives the number of tracks in <tt>Disk.numTracks</tt>,
+ * and the host file to keep the disk in, within the test directory, in
+ * <tt>Disk.fileName</tt>.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory to keep the disk's file in.
+     */
+    public Disk(Privilege privilege, File directory) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 128);
+	Lib.assertTrue(numTracks > 0);
+	numSectors = numTracks * sectorsPerTrack;
+
+	final File f = new File(directory,
+				Config.getString("Disk.fileName", "DISK"));
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openFile(f); }
+	    });
+	Lib.assertTrue(file != null, "unable to open disk file");
+
+	completionInterrupt = new Runnable() {
+		public void run() { completionInterrupt(); }
+	    };
+    }
+
+    private void openFile(File f) {
+	try {
+	    file = new RandomAccessFile(f, "rw");
+	    if (file.length() < (long) numSectors*sectorSize)
+		file.setLength((long) numSectors*sectorSize);
+	}
+	catch (IOException e) {
+	    file = null;
+	}
+    }
+
+    /**
+     * Set the callback to call when a request completes.
+     *
+     * @param	interruptHandler	the callback.
+     */
+    public void setInterruptHandler(Runnable interruptHandler) {
+	this.interruptHandler = interruptHandler;
+    }
+
+    /**
+     * Start reading consecutive sectors into <i>buf</i>. The data is there
+     * when the completion interrupt arrives.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	buf	the buffer to read into.
+     * @param	offset	the first byte of <i>buf</i> to read into.
+     */
+    public void readRequest(int sector, int count, byte[] buf, int offset) {
+	request(sector, count, buf, offset, false);
+    }
+
+    /**
+     * Start writing consecutive sectors from <i>buf</i>. The buffer must not
+     * change until the completion interrupt arrives.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	buf	the buffer to write from.
+     * @param	offset	the first byte of <i>buf</i> to write from.
+     */
+    public void writeRequest(int sector, int count, byte[] buf, int offset) {
+	request(sector, count, buf, offset, true);
+    }
+
+    private void request(int sector, int count, byte[] buf, int offset,
+			 boolean write) {
+	Lib.assertTrue(!busy);
+	Lib.assertTrue(count > 0 && sector >= 0 && sector+count <= numSectors);
+	Lib.assertTrue(offset >= 0 && offset + count*sectorSize <= buf.length);
+
+	busy = true;
+	this.sector = sector;
+	this.count = count;
+	this.buf = buf;
+	this.offset = offset;
+	this.write = write;
+
+	privilege.interrupt.schedule(serviceTime(sector, count), "disk",
+				     completionInterrupt);
+    }
+
+    /**
+     * Return how long a request would take if it were started now.
+     */
+    private long serviceTime(int sector, int count) {
+	int track = sector / sectorsPerTrack;
+	long time = seekTime(headTrack, track);
+
+	// wait for the first sector to come around
+	long sectorTime = Stats.RotationTime / sectorsPerTrack;
+	long underHead = ((privilege.stats.totalTicks + time) / sectorTime) %
+	    sectorsPerTrack;
+	time += ((sector % sectorsPerTrack - underHead + sectorsPerTrack) %
+		 sectorsPerTrack) * sectorTime;
+
+	// then transfer, stepping to the next track as needed
+	int lastTrack = (sector+count-1) / sectorsPerTrack;
+	time += count * sectorTime + (lastTrack - track) * seekTime(0, 1);
+
+	return Math.max(1, time);
+    }
+
+    /**
+     * Return the time it takes to seek between two tracks.
+     */
+    private long seekTime(int from, int to) {
+	int distance = Math.abs(from - to);
+	if (distance == 0)
+	    return 0;
+
+	long trackToTrack = Stats.SeekTime / 10;
+	return trackToTrack + (Stats.SeekTime - trackToTrack) * (distance-1) /
+	    Math.max(1, numTracks-1);
+    }
+
+    private void completionInterrupt() {
+	Lib.assertTrue(busy);
+
+	try {
+	    file.seek((long) sector * sectorSize);
+	    if (write) {
+		file.write(buf, offset, count*sectorSize);
+		privilege.stats.numDiskWrites += count;
+	    }
+	    else {
+		file.readFully(buf, offset, count*sectorSize);
+		privilege.stats.numDiskReads += count;
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk file I/O failed");
+	}
+
+	headTrack = (sector+count-1) / sectorsPerTrack;
+	busy = false;
+	buf = null;
+
+	if (interruptHandler != null)
+	    interruptHandler.run();
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     */
+    public int getNumSectors() {
+	return numSectors;
+    }
+
+    /**
+     * Return the number of tracks on the disk.
+     */
+    public int getNumTracks() {
+	return numTracks;
+    }
+
+    /** The number of bytes in a sector. */
+    public static final int sectorSize = 512;
+    /** The number of sectors in a track. */
+    public static final int sectorsPerTrack = 32;
+
+    private Privilege privilege;
+    private RandomAccessFile file = null;
+    private int numTracks, numSectors;
+
+    private Runnable interruptHandler = null;
+    private Runnable completionInterrupt;
+
+    private boolean busy = false;
+    private int headTrack = 0;
+    private int sector, count, offset;
+    private byte[] buf;
+    private boolean write;
+}
@@ -37,8 +37,11 @@ public final class Processor {
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
 
+	// a VM kernel manages a TLB, unless Processor.usingTLB turns it off, in
+	// which case it gives the processor a packed page table instead
 	usingTLB =
-	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
+	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel) &&
+	     Config.getBoolean("Processor.usingTLB", true));
 	
 	this.numPhysPages = numPhysPages;
 
@@ -175,6 +178,28 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	this.packedDirectory = null;
+    }
+
+    /**
+     * Set the page table pointer to a packed page table, in place of a table
+     * of <tt>TranslationEntry</tt> objects. Each page's entry is one
+     * <tt>long</tt>, kept in leaves of <tt>packedLeafSize</tt> entries: the
+     * entry for virtual page <i>vpn</i> is
+     * <tt>directory[vpn >>> packedLeafBits][vpn & (packedLeafSize-1)]</tt>,
+     * and a <tt>null</tt> leaf holds no valid pages. The low bits of an entry
+     * hold the physical page number, masked by <tt>packedPPNMask</tt>, and
+     * the <tt>packedZZZ</tt> flags. The processor reads entries in place and
+     * sets their used and dirty flags itself; all other bits are left for
+     * the kernel.
+     *
+     * @param	directory	the page directory to use.
+     */
+    public void setPackedPageTable(long[][] directory) {
+	Lib.assertTrue(!usingTLB);
+
+	this.translations = null;
+	this.packedDirectory = directory;
     }
 
     /**
@@ -310,6 +335,9 @@ public final class Processor {
 
 	TranslationEntry entry = null;
 
+	if (packedDirectory != null)
+	    return translatePacked(vaddr, vpn, offset, writing);
+
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
@@ -362,6 +390,44 @@ public final class Processor {
 	return paddr;
     }
 
+    /**
+     * Translate a virtual address through the packed page table, updating
+     * the entry's used and dirty flags in place.
+     */
+    private int translatePacked(int vaddr, int vpn, int offset,
+				boolean writing) throws MipsException {
+	int dir = vpn >>> packedLeafBits;
+	long[] leaf = (dir < packedDirectory.length) ?
+	    packedDirectory[dir] : null;
+	int index = vpn & (packedLeafSize-1);
+
+	long entry = (leaf == null) ? 0 : leaf[index];
+	if ((entry & packedValid) == 0) {
+	    privilege.stats.numPageFaults++;
+	    Lib.debug(dbgProcessor, "\t\tpage fault");
+	    throw new MipsException(exceptionPageFault, vaddr);
+	}
+
+	if ((entry & packedReadOnly) != 0 && writing) {
+	    Lib.debug(dbgProcessor, "\t\tread-only exception");
+	    throw new MipsException(exceptionReadOnly, vaddr);
+	}
+
+	int ppn = (int) entry & packedPPNMask;
+	if (ppn >= numPhysPages) {
+	    Lib.debug(dbgProcessor, "\t\tbad ppn");
+	    throw new MipsException(exceptionBusError, vaddr);
+	}
+
+	leaf[index] = entry | packedUsed | (writing ? packedDirty : 0);
+
+	int paddr = (ppn*pageSize) + offset;
+
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+	return paddr;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -546,11 +612,28 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /** The packed page table, if one is in use in place of translations. */
+    private long[][] packedDirectory = null;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
+
+    /** log2 of the number of entries in a leaf of a packed page table. */
+    public static final int packedLeafBits = 10;
+    /** Number of entries in a leaf of a packed page table. */
+    public static final int packedLeafSize = 1 << packedLeafBits;
+    /** The bits of a packed entry that hold the physical page number. */
+    public static final int packedPPNMask = (1 << 20) - 1;
+    /** A packed entry's valid flag. */
+    public static final int packedValid = 1 << 20;
+    /** A packed entry's read-only flag. */
+    public static final int packedReadOnly = 1 << 21;
+    /** A packed entry's used flag, set by the processor. */
+    public static final int packedUsed = 1 << 22;
+    /** A packed entry's dirty flag, set by the processor. */
+    public static final int packedDirty = 1 << 23;
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
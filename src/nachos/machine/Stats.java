@@ -23,12 +23,107 @@ public final class Stats {
 			   + ", user " + userTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
+	if (numDiskRequests > 0) {
+	    System.out.println("Disk queue: requests " + numDiskRequests
+			       + ", merged " + numDiskRequestsMerged
+			       + ", transfers " + numDiskTransfers
+			       + ", seeks " + numDiskSeeks
+			       + " over " + numTracksSeeked + " tracks");
+	}
+	if (numJournalTransactions + numJournalReplayed > 0) {
+	    System.out.println("Journal: transactions "
+			       + numJournalTransactions
+			       + ", sectors " + numJournalSectors
+			       + ", checkpoints " + numJournalCheckpoints
+			       + ", replayed " + numJournalReplayed);
+	}
+	if (numLogCheckpoints > 0) {
+	    System.out.println("Log: segments written " + numLogSegmentsWritten
+			       + ", checkpoints " + numLogCheckpoints
+			       + ", segments cleaned " + numLogSegmentsCleaned
+			       + ", blocks moved " + numLogBlocksCleaned);
+	}
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	System.out.println("Fault-around: major faults " + numMajorFaults
+			   + ", prefetched pages " + numPrefetchedPages
+			   + ", prefetch hits " + numPrefetchHits);
+	System.out.println("Zeroed frames: pool hits " + numZeroedHits
+			   + ", misses " + numZeroedMisses
+			   + ", cleared by idle thread " + numFramesZeroedIdle);
+	if (numTLBEntriesKept + numTLBEntriesRestored > 0) {
+	    System.out.println("TLB: entries kept " + numTLBEntriesKept
+			       + ", restored " + numTLBEntriesRestored
+			       + " across context switches");
+	}
+	if (numEvictions > 0) {
+	    System.out.println("Swap: evictions " + numEvictions
+			       + ", page-outs " + numSwapWrites
+			       + ", page-ins " + numSwapReads);
+	}
+	if (numSwapCacheStores + numSwapCacheRejects > 0) {
+	    System.out.println("Swap cache: stores " + numSwapCacheStores
+			       + ", hits " + numSwapCacheHits
+			       + ", write-backs " + numSwapCacheWriteBacks
+			       + ", incompressible " + numSwapCacheRejects);
+	}
+	if (numWorkingSets > 0) {
+	    System.out.println("Working sets: processes " + numWorkingSets
+			       + ", average "
+			       + totalWorkingSetPages/numWorkingSets + " pages"
+			       + ", largest " + maxWorkingSetPages + " pages");
+	}
+	if (numPrepageBatches > 0) {
+	    System.out.println("Prepaging: batches " + numPrepageBatches
+			       + ", pages " + numPrepagedPages
+			       + " in " + numSwapRunReads + " swap reads"
+			       + ", hits " + numPrepageHits);
+	    if (numProcessesPrepaged > 0) {
+		System.out.println("Prepage hit rate: average "
+				   + (int) (100*totalPrepageHitRate
+					    / numProcessesPrepaged)
+				   + "% over " + numProcessesPrepaged
+				   + " processes");
+	    }
+	}
+	if (numFramesScanned > 0) {
+	    System.out.println("Merging: frames scanned " + numFramesScanned
+			       + ", pages merged " + numPagesMerged);
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numCacheHits + numCacheMisses > 0) {
+	    System.out.println("Buffer cache: hits " + numCacheHits
+			       + ", misses " + numCacheMisses
+			       + ", blocks read " + numCacheBlocksRead
+			       + " in " + numCacheReads + " reads"
+			       + ", written " + numCacheBlocksWritten
+			       + ", evicted " + numCacheEvictions
+			       + ", background flushes " + numCacheFlushes);
+	    System.out.println("Read-ahead: blocks " + numReadAheadBlocks
+			       + ", hits " + numReadAheadHits);
+	}
+	if (numNameHits + numNameMisses > 0) {
+	    System.out.println("Name cache: hits " + numNameHits
+			       + ", negative hits " + numNegativeNameHits
+			       + ", misses " + numNameMisses
+			       + ", evictions " + numNameEvictions);
+	}
+	if (numRingBatches > 0) {
+	    System.out.println("Syscall rings: " + numRingBatches
+			       + " batches, " + numRingSyscalls + " syscalls");
+	}
+	if (numAsyncRequests > 0)
+	    System.out.println("Async I/O: " + numAsyncRequests + " requests");
+	for (int i=0; i<MaxSyscalls; i++) {
+	    if (numSyscalls[i] > 0) {
+		System.out.println("Syscall " + syscallNames[i] + ": "
+				   + numSyscalls[i] + " calls, "
+				   + syscallTicks[i] + " ticks");
+	    }
+	}
     }
 
     /**
@@ -49,6 +144,32 @@ public final class Stats {
     public int numDiskReads = 0;
     /** The total number of sectors Nachos has written to the simulated disk.*/
     public int numDiskWrites = 0;
+    /** The number of requests made to the disk queue. */
+    public int numDiskRequests = 0;
+    /** The number of disk requests merged into one already queued. */
+    public int numDiskRequestsMerged = 0;
+    /** The number of transfers the disk queue gave the disk. */
+    public int numDiskTransfers = 0;
+    /** The number of disk transfers that moved the head to another track. */
+    public int numDiskSeeks = 0;
+    /** The number of tracks the disk head moved, as the queue sees it. */
+    public int numTracksSeeked = 0;
+    /** The number of transactions written to the file system journal. */
+    public int numJournalTransactions = 0;
+    /** The number of journal sectors written. */
+    public int numJournalSectors = 0;
+    /** The number of times the journal filled and was written home. */
+    public int numJournalCheckpoints = 0;
+    /** The number of journal transactions replayed when mounting. */
+    public int numJournalReplayed = 0;
+    /** The number of log segments filled and written out. */
+    public int numLogSegmentsWritten = 0;
+    /** The number of checkpoints the log file system took. */
+    public int numLogCheckpoints = 0;
+    /** The number of log segments cleaned. */
+    public int numLogSegmentsCleaned = 0;
+    /** The number of live blocks the log cleaner moved. */
+    public int numLogBlocksCleaned = 0;
     /** The total number of characters Nachos has read from the console. */
     public int numConsoleReads = 0;
     /** The total number of characters Nachos has written to the console. */
@@ -57,10 +178,112 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The number of page faults that had to bring in the faulting page. */
+    public int numMajorFaults = 0;
+    /** The number of pages mapped around a fault without faulting. */
+    public int numPrefetchedPages = 0;
+    /** The number of prefetched pages that were later used. */
+    public int numPrefetchHits = 0;
+    /** The number of zero-filled frames taken from the pre-zeroed pool. */
+    public int numZeroedHits = 0;
+    /** The number of zero-filled frames that had to be cleared on demand. */
+    public int numZeroedMisses = 0;
+    /** The number of frames the idle thread cleared into the pool. */
+    public int numFramesZeroedIdle = 0;
+    /** The number of TLB entries still valid when their process resumed. */
+    public int numTLBEntriesKept = 0;
+    /** The number of TLB entries reloaded from a process's shadow copy. */
+    public int numTLBEntriesRestored = 0;
+    /** The number of frames reclaimed by the page replacement clock. */
+    public int numEvictions = 0;
+    /** The number of pages written to the swap file. */
+    public int numSwapWrites = 0;
+    /** The number of pages read back from the swap file. */
+    public int numSwapReads = 0;
+    /** The number of evicted pages compressed into the swap cache. */
+    public int numSwapCacheStores = 0;
+    /** The number of pages brought back from the swap cache. */
+    public int numSwapCacheHits = 0;
+    /** The number of cached pages written to the swap file to make room. */
+    public int numSwapCacheWriteBacks = 0;
+    /** The number of evicted pages that would not compress. */
+    public int numSwapCacheRejects = 0;
+    /** The number of times a resumed process had its working set paged in. */
+    public int numPrepageBatches = 0;
+    /** The number of working set pages brought in by prepaging. */
+    public int numPrepagedPages = 0;
+    /** The number of prepaged pages that were later used. */
+    public int numPrepageHits = 0;
+    /** The number of multi-page reads from the swap file. */
+    public int numSwapRunReads = 0;
+    /** The number of processes whose working set was measured at exit. */
+    public int numWorkingSets = 0;
+    /** The sum of those processes' working set sizes, in pages. */
+    public long totalWorkingSetPages = 0;
+    /** The largest of those working sets, in pages. */
+    public int maxWorkingSetPages = 0;
+    /** The number of exited processes that had pages prepaged. */
+    public int numProcessesPrepaged = 0;
+    /**
+     * The sum over those processes of the fraction of their prepaged pages
+     * they went on to use.
+     */
+    public double totalPrepageHitRate = 0;
+    /** The number of resident frames hashed by the page merger. */
+    public int numFramesScanned = 0;
+    /** The number of pages moved into a frame with identical contents. */
+    public int numPagesMerged = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The number of block lookups found in the kernel's buffer cache. */
+    public int numCacheHits = 0;
+    /** The number of block lookups that missed in the buffer cache. */
+    public int numCacheMisses = 0;
+    /** The number of reads the buffer cache made to fill missing blocks. */
+    public int numCacheReads = 0;
+    /** The number of blocks the buffer cache read in. */
+    public int numCacheBlocksRead = 0;
+    /** The number of dirty blocks the buffer cache wrote back. */
+    public int numCacheBlocksWritten = 0;
+    /** The number of blocks evicted from the buffer cache. */
+    public int numCacheEvictions = 0;
+    /** The number of times the buffer cache's flusher wrote back blocks. */
+    public int numCacheFlushes = 0;
+    /** The number of blocks the buffer cache read ahead. */
+    public int numReadAheadBlocks = 0;
+    /** The number of blocks read ahead that were then asked for. */
+    public int numReadAheadHits = 0;
+    /**
+     * The number of stub file system opens answered without looking the
+     * name up on the host.
+     */
+    public int numNameHits = 0;
+    /** The number of stub file system opens that failed without looking. */
+    public int numNegativeNameHits = 0;
+    /** The number of stub file system opens that looked on the host. */
+    public int numNameMisses = 0;
+    /** The number of names dropped from the full stub name cache. */
+    public int numNameEvictions = 0;
+    /** The number of times a process entered its syscall ring. */
+    public int numRingBatches = 0;
+    /** The number of syscalls carried out through syscall rings. */
+    public int numRingSyscalls = 0;
+    /** The number of asynchronous I/O operations started. */
+    public int numAsyncRequests = 0;
+    /** The name of each syscall the kernel handles, by syscall number. */
+    public String[] syscallNames = new String[MaxSyscalls];
+    /** The number of times each syscall has been made. */
+    public int[] numSyscalls = new int[MaxSyscalls];
+    /**
+     * The total ticks spent in calls to each syscall that have returned,
+     * including time other threads ran while a call waited.
+     */
+    public long[] syscallTicks = new long[MaxSyscalls];
+
+    /** The number of syscall numbers that statistics are kept for. */
+    public static final int MaxSyscalls = 64;
 
     /**
      * The amount to advance simulated time after each user instructions is
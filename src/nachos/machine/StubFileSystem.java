@@ -8,10 +8,32 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * Every open file with the same name shares one host <tt>FileChannel</tt>,
+ * read and written at explicit positions, and the file's length is tracked
+ * rather than asked of the host. If <tt>FileSystem.mapFiles</tt> is set,
+ * files that are only ever read, such as COFF executables, are mapped into
+ * memory and read straight from the mapping.
+ *
+ * <p>
+ * The last <tt>FileSystem.nameCacheSize</tt> names looked up, 64 by default,
+ * are remembered: a name that exists with its host file still open, so that
+ * opening it again takes no trip to the host, and a name that doesn't exist,
+ * so that failing to open it doesn't either. Creating and removing a file
+ * update its entry, and the least recently used entry is dropped, closing
+ * its host file, when the cache is full.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,14 +46,32 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	mapFiles = Config.getBoolean("FileSystem.mapFiles", false);
+	nameCacheSize = Config.getInteger("FileSystem.nameCacheSize", 64);
+	delayTicks = Config.getInteger("FileSystem.delayTicks", 1000);
     }
     
     public OpenFile open(String name, boolean truncate) {
-	if (!checkName(name))
+	// a name already open or in the cache needs no checking, and only
+	// needs a trip to the host to create it
+	boolean known = hostFiles.containsKey(name) ||
+	    nameCache.containsKey(name);
+	if (!known && !checkName(name))
 	    return null;
-	
-	delay();
-	    
+
+	if (known && !hostFiles.containsKey(name) &&
+	    nameCache.get(name) == null) {
+	    if (!truncate) {
+		Machine.stats().numNegativeNameHits++;
+		return null;
+	    }
+	    known = false;
+	}
+
+	if (!known)
+	    delay();
+
 	try {
 	    return new StubOpenFile(name, truncate);
 	}
@@ -46,11 +86,54 @@ public class StubFileSystem implements FileSystem {
 
 	delay();
 
+	HostFile idle = nameCache.remove(name);
+	if (idle != null)
+	    closeHostFile(idle);
+
 	FileRemover fr = new FileRemover(new File(directory, name));
 	privilege.doPrivileged(fr);
+
+	// files still open keep using the removed file
+	if (fr.successful) {
+	    hostFiles.remove(name);
+	    cacheName(name, null);
+	}
 	return fr.successful;
     }
 
+    /**
+     * Remember a name, with its host file if it exists or <tt>null</tt> if
+     * it doesn't, dropping the least recently used name if the cache is
+     * full.
+     */
+    private void cacheName(String name, HostFile hostFile) {
+	if (nameCacheSize == 0) {
+	    if (hostFile != null)
+		closeHostFile(hostFile);
+	    return;
+	}
+
+	nameCache.put(name, hostFile);
+	if (nameCache.size() > nameCacheSize) {
+	    Iterator<Map.Entry<String, HostFile>> it =
+		nameCache.entrySet().iterator();
+	    HostFile evicted = it.next().getValue();
+	    it.remove();
+	    Machine.stats().numNameEvictions++;
+
+	    if (evicted != null)
+		closeHostFile(evicted);
+	}
+    }
+
+    private void closeHostFile(HostFile hostFile) {
+	try {
+	    hostFile.channel.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
     private class FileRemover implements Runnable {
 	public FileRemover(File f) {
 	    this.f = f;
@@ -66,9 +149,86 @@ public class StubFileSystem implements FileSystem {
 
     private void delay() {
 	long time = Machine.timer().getTime();
-	int amount = 1000;
-	ThreadedKernel.alarm.waitUntil(amount);
-	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
+	ThreadedKernel.alarm.waitUntil(delayTicks);
+	Lib.assertTrue(Machine.timer().getTime() >= time+delayTicks);
+    }
+
+    /**
+     * A host file and the state shared by every <tt>StubOpenFile</tt> that
+     * has it open: one channel for positional reads and writes, the file's
+     * length, and, for files that are only read, a read-only mapping of the
+     * file.
+     */
+    private class HostFile {
+	HostFile(FileChannel channel) throws IOException {
+	    this.channel = channel;
+	    length = channel.size();
+	}
+
+	int read(long pos, byte[] buf, int offset, int length)
+	    throws IOException {
+	    if (pos >= this.length)
+		return 0;
+	    length = (int) Math.min(length, this.length - pos);
+
+	    if (mapping == null && mappable) {
+		privilege.doPrivileged(new Runnable() {
+		    public void run() { map(); }
+		});
+	    }
+
+	    if (mapping != null && pos + length <= mapping.capacity()) {
+		ByteBuffer view = mapping.duplicate();
+		view.position((int) pos);
+		view.get(buf, offset, length);
+		return length;
+	    }
+
+	    ByteBuffer dst = ByteBuffer.wrap(buf, offset, length);
+	    while (dst.hasRemaining()) {
+		if (channel.read(dst, pos + dst.position() - offset) < 0)
+		    break;
+	    }
+	    return dst.position() - offset;
+	}
+
+	private void map() {
+	    try {
+		mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+	    }
+	    catch (IOException e) {
+		// keep reading through the channel
+		mappable = false;
+	    }
+	}
+
+	void write(long pos, byte[] buf, int offset, int length)
+	    throws IOException {
+	    // the file is being written, so stop reading it through a mapping
+	    mappable = false;
+	    mapping = null;
+
+	    ByteBuffer src = ByteBuffer.wrap(buf, offset, length);
+	    while (src.hasRemaining())
+		channel.write(src, pos + src.position() - offset);
+
+	    this.length = Math.max(this.length, pos + length);
+	}
+
+	void truncate() throws IOException {
+	    mappable = false;
+	    mapping = null;
+
+	    channel.truncate(0);
+	    length = 0;
+	}
+
+	FileChannel channel;
+	long length;
+	MappedByteBuffer mapping = null;
+	/** Whether reads may still go through a mapping. */
+	boolean mappable = mapFiles;
+	int refCount = 0;
     }
 
     private class StubOpenFile extends OpenFileWithPosition {
@@ -76,18 +236,42 @@ public class StubFileSystem implements FileSystem {
 	    throws IOException {
 	    super(StubFileSystem.this, name);
 
-	    final File f = new File(directory, name);
-
 	    if (openCount == maxOpenFiles)
 		throw new IOException();
 
-	    privilege.doPrivileged(new Runnable() {
-		public void run() { getRandomAccessFile(f, truncate); }
-	    });
+	    hostFile = hostFiles.get(name);
+	    if (hostFile == null) {
+		hostFile = nameCache.remove(name);
+		if (hostFile != null)
+		    hostFiles.put(name, hostFile);
+	    }
 
-	    if (file == null)
-		throw new IOException();
+	    if (hostFile != null) {
+		Machine.stats().numNameHits++;
+		if (truncate)
+		    hostFile.truncate();
+	    }
+	    else {
+		Machine.stats().numNameMisses++;
+		nameCache.remove(name);
+
+		final File f = new File(directory, name);
 
+		privilege.doPrivileged(new Runnable() {
+		    public void run() { getRandomAccessFile(f, truncate); }
+		});
+
+		if (file == null) {
+		    if (!truncate)
+			cacheName(name, null);
+		    throw new IOException();
+		}
+
+		hostFile = new HostFile(file.getChannel());
+		hostFiles.put(name, hostFile);
+	    }
+
+	    hostFile.refCount++;
 	    open = true;
 	    openCount++;
 	}
@@ -113,8 +297,7 @@ public class StubFileSystem implements FileSystem {
 	    try {
 		delay();
 
-		file.seek(pos);
-		return Math.max(0, file.read(buf, offset, length));
+		return hostFile.read(pos, buf, offset, length);
 	    }
 	    catch (IOException e) {
 		return -1;
@@ -128,8 +311,7 @@ public class StubFileSystem implements FileSystem {
 	    try {
 		delay();
 		
-		file.seek(pos);
-		file.write(buf, offset, length);
+		hostFile.write(pos, buf, offset, length);
 		return length;
 	    }
 	    catch (IOException e) {
@@ -138,31 +320,49 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	public int length() {
-	    try {
-		return (int) file.length();
-	    }
-	    catch (IOException e) {
-		return -1;
-	    }
+	    return (int) hostFile.length;
 	}
 
 	public void close() {
-	    if (open) {
-		open = false;
-		openCount--;
-	    }
-		
-	    try {
-		file.close();
+	    if (!open)
+		return;
+
+	    open = false;
+	    openCount--;
+
+	    if (--hostFile.refCount > 0)
+		return;
+
+	    // keep the host file open in case the name is opened again
+	    if (hostFiles.get(getName()) == hostFile) {
+		hostFiles.remove(getName());
+		cacheName(getName(), hostFile);
 	    }
-	    catch (IOException e) {
+	    else {
+		closeHostFile(hostFile);
 	    }
 	}
 
 	private RandomAccessFile file = null;
+	private HostFile hostFile;
 	private boolean open = false;
     }
 
+    /** The host files currently open, by name. */
+    private HashMap<String, HostFile> hostFiles =
+	new HashMap<String, HostFile>();
+    /**
+     * Recently used names that aren't open, in least recently used order:
+     * each with its host file, kept open, or <tt>null</tt> if there's no
+     * such file.
+     */
+    private LinkedHashMap<String, HostFile> nameCache =
+	new LinkedHashMap<String, HostFile>(16, 0.75f, true);
+    private int nameCacheSize;
+    private boolean mapFiles;
+    /** Ticks each host operation takes, from FileSystem.delayTicks. */
+    private int delayTicks;
+
     private int openCount = 0;
     private static final int maxOpenFiles = 16;
     
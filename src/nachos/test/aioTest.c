@@ -0,0 +1,73 @@
+/* aioTest.c
+ *	Start asynchronous reads of two files at once, collect both with
+ *	aioWait(), and check each buffer holds its own file.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define SIZE 2048
+
+char *names[2] = { "aioTest0.tmp", "aioTest1.tmp" };
+char buf[2][SIZE];
+
+int fail(char *why)
+{
+  printf("%s\nFAILURE\n", why);
+  return 1;
+}
+
+int main()
+{
+  int fd[2], req[2], done, result, i, j, n;
+
+  for (i = 0; i < 2; i++) {
+    for (j = 0; j < SIZE; j++)
+      buf[i][j] = 'x' + i;
+
+    fd[i] = creat(names[i]);
+    if (fd[i] == -1 || write(fd[i], buf[i], SIZE) != SIZE)
+      return fail("unable to write test file");
+    close(fd[i]);
+  }
+
+  for (i = 0; i < 2; i++) {
+    for (j = 0; j < SIZE; j++)
+      buf[i][j] = 0;
+
+    fd[i] = open(names[i]);
+    if (fd[i] == -1)
+      return fail("unable to open test file");
+  }
+
+  /* both reads are in flight before either is collected */
+  for (i = 0; i < 2; i++) {
+    req[i] = aioRead(fd[i], buf[i], SIZE);
+    if (req[i] == -1)
+      return fail("aioRead failed");
+  }
+
+  for (n = 0; n < 2; n++) {
+    result = aioWait(&done, 1);
+    if (done != req[0] && done != req[1])
+      return fail("aioWait returned an unknown request");
+    if (result != SIZE)
+      return fail("short read");
+  }
+
+  if (aioWait(&done, 0) != -1 || done != -1)
+    return fail("extra completion");
+
+  for (i = 0; i < 2; i++) {
+    close(fd[i]);
+    unlink(names[i]);
+
+    for (j = 0; j < SIZE; j++) {
+      if (buf[i][j] != 'x' + i)
+	return fail("buffer holds the wrong data");
+    }
+  }
+
+  printf("SUCCESS\n");
+  return 0;
+}
@@ -0,0 +1,81 @@
+/* fileBench.c
+ *	Measure file read/write throughput. Writes a file in chunks of the
+ *	given size, reads it back the same way, checks the contents, and
+ *	removes it. There is no clock syscall, so compare the total ticks
+ *	Nachos prints when it halts across runs with different chunk sizes.
+ *
+ *	usage: fileBench [total KB] [chunk bytes]
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define MAXCHUNK 16384
+
+char buf[MAXCHUNK];
+
+int main(int argc, char** argv)
+{
+  int totalKB = 256, chunk = 4096;
+  int total, done, amount, fd, i;
+  char *name = "fileBench.tmp";
+
+  if (argc > 1)
+    totalKB = atoi(argv[1]);
+  if (argc > 2)
+    chunk = atoi(argv[2]);
+  if (chunk < 1 || chunk > MAXCHUNK) {
+    printf("chunk must be between 1 and %d bytes\n", MAXCHUNK);
+    return 1;
+  }
+  total = totalKB * 1024;
+
+  fd = creat(name);
+  if (fd == -1) {
+    printf("Unable to create %s\n", name);
+    return 1;
+  }
+
+  for (done = 0; done < total; done += amount) {
+    amount = total - done;
+    if (amount > chunk)
+      amount = chunk;
+
+    for (i = 0; i < amount; i++)
+      buf[i] = (char) (done + i);
+
+    if (write(fd, buf, amount) != amount) {
+      printf("write failed at %d\n", done);
+      return 1;
+    }
+  }
+  close(fd);
+
+  fd = open(name);
+  if (fd == -1) {
+    printf("Unable to open %s\n", name);
+    return 1;
+  }
+
+  for (done = 0; done < total; done += amount) {
+    amount = read(fd, buf, chunk);
+    if (amount <= 0) {
+      printf("read failed at %d\n", done);
+      return 1;
+    }
+
+    for (i = 0; i < amount; i++) {
+      if (buf[i] != (char) (done + i)) {
+	printf("mismatch at %d\n", done + i);
+	return 1;
+      }
+    }
+  }
+  close(fd);
+
+  unlink(name);
+
+  printf("%d KB written and read back in %d byte chunks\n", totalKB, chunk);
+  return 0;
+}
@@ -0,0 +1,57 @@
+/* forkTest.c
+ *	Check that fork() gives the child its own copy of memory: the child
+ *	overwrites an array it shares copy-on-write with its parent, and the
+ *	parent, after joining the child, checks that it still sees its own
+ *	values.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define SIZE 4096
+
+int data[SIZE];
+
+int main()
+{
+  int i, pid, status;
+
+  for (i = 0; i < SIZE; i++)
+    data[i] = i;
+
+  pid = fork();
+  if (pid == -1) {
+    printf("FAILURE\n");
+    return 1;
+  }
+
+  if (pid == 0) {
+    /* child: see the parent's values, then overwrite them */
+    for (i = 0; i < SIZE; i++) {
+      if (data[i] != i)
+	return 1;
+      data[i] = -i;
+    }
+    for (i = 0; i < SIZE; i++) {
+      if (data[i] != -i)
+	return 1;
+    }
+    return 0;
+  }
+
+  if (join(pid, &status) != 1 || status != 0) {
+    printf("FAILURE\n");
+    return 1;
+  }
+
+  /* the child's writes must not show through */
+  for (i = 0; i < SIZE; i++) {
+    if (data[i] != i) {
+      printf("FAILURE\n");
+      return 1;
+    }
+  }
+
+  printf("SUCCESS\n");
+  return 0;
+}
@@ -0,0 +1,92 @@
+/* metaBench.c
+ *	Measure metadata operations under concurrency. Starts the given
+ *	number of copies of itself, each of which creates, writes, closes and
+ *	removes small files of its own, and waits for them. Compare the total
+ *	ticks Nachos prints when it halts with the journal on and off; the
+ *	"Journal:" line shows how many transactions the operations took.
+ *
+ *	usage: metaBench [processes] [files each]
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define MAXPROCS 32
+#define FILESIZE 100
+
+char buf[FILESIZE];
+
+int child(int id, int numFiles)
+{
+  char name[32];
+  int i, fd;
+
+  for (i = 0; i < numFiles; i++) {
+    sprintf(name, "meta%d.%d.tmp", id, i);
+
+    fd = creat(name);
+    if (fd == -1) {
+      printf("Unable to create %s\n", name);
+      return 1;
+    }
+    if (write(fd, buf, FILESIZE) != FILESIZE) {
+      printf("write to %s failed\n", name);
+      return 1;
+    }
+    close(fd);
+
+    if (unlink(name) != 0) {
+      printf("Unable to remove %s\n", name);
+      return 1;
+    }
+  }
+
+  return 0;
+}
+
+int main(int argc, char** argv)
+{
+  int numProcs = 8, numFiles = 8;
+  int pids[MAXPROCS];
+  char idArg[16], filesArg[16];
+  char *args[4];
+  int i, status, failed = 0;
+
+  /* a copy of ourselves started below: metaBench -child id files */
+  if (argc > 3 && strcmp(argv[1], "-child") == 0)
+    return child(atoi(argv[2]), atoi(argv[3]));
+
+  if (argc > 1)
+    numProcs = atoi(argv[1]);
+  if (argc > 2)
+    numFiles = atoi(argv[2]);
+  if (numProcs < 1 || numProcs > MAXPROCS) {
+    printf("processes must be between 1 and %d\n", MAXPROCS);
+    return 1;
+  }
+
+  sprintf(filesArg, "%d", numFiles);
+  args[0] = "metaBench.coff";
+  args[1] = "-child";
+  args[2] = idArg;
+  args[3] = filesArg;
+
+  for (i = 0; i < numProcs; i++) {
+    sprintf(idArg, "%d", i);
+    pids[i] = exec("metaBench.coff", 4, args);
+    if (pids[i] == -1) {
+      printf("Unable to start copy %d\n", i);
+      return 1;
+    }
+  }
+
+  for (i = 0; i < numProcs; i++) {
+    if (join(pids[i], &status) != 1 || status != 0)
+      failed++;
+  }
+
+  printf("%d creates, writes and removes by %d processes, %d failed\n",
+	 numProcs * numFiles * 3, numProcs, failed);
+  return failed;
+}
@@ -0,0 +1,91 @@
+/* ringTest.c
+ *	Carry out a batch of writes through the syscall ring with one
+ *	ringEnter(), check each completion, and read the file back with
+ *	read() to check the writes landed in order. A fork() queued in the
+ *	batch must complete with -1.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define ENTRIES 8
+#define WRITES 4
+#define CHUNK 100
+
+struct {
+  struct ring_header header;
+  struct ring_sqe sq[ENTRIES];
+  struct ring_cqe cq[ENTRIES];
+} ring;
+
+char buf[WRITES][CHUNK];
+char check[WRITES*CHUNK];
+
+int fail(char *why)
+{
+  printf("%s\nFAILURE\n", why);
+  return 1;
+}
+
+int main()
+{
+  char *name = "ringTest.tmp";
+  struct ring_sqe *sqe;
+  struct ring_cqe *cqe;
+  int fd, i, j;
+
+  fd = creat(name);
+  if (fd == -1)
+    return fail("creat failed");
+
+  if (ringSetup(&ring, ENTRIES) != 0)
+    return fail("ringSetup failed");
+
+  for (i = 0; i < WRITES; i++) {
+    for (j = 0; j < CHUNK; j++)
+      buf[i][j] = 'a' + i;
+
+    sqe = &ring.sq[ring.header.sqTail % ENTRIES];
+    sqe->syscall = syscallWrite;
+    sqe->args[0] = fd;
+    sqe->args[1] = (int) buf[i];
+    sqe->args[2] = CHUNK;
+    sqe->userData = i;
+    ring.header.sqTail++;
+  }
+
+  sqe = &ring.sq[ring.header.sqTail % ENTRIES];
+  sqe->syscall = syscallFork;
+  sqe->userData = WRITES;
+  ring.header.sqTail++;
+
+  if (ringEnter(WRITES+1) != WRITES+1)
+    return fail("ringEnter did not consume the batch");
+  if (ring.header.sqHead != WRITES+1 || ring.header.cqTail != WRITES+1)
+    return fail("ring indices not advanced");
+
+  for (i = 0; i <= WRITES; i++) {
+    cqe = &ring.cq[ring.header.cqHead % ENTRIES];
+    if (cqe->userData != i)
+      return fail("completions out of order");
+    if (cqe->result != (i < WRITES ? CHUNK : -1))
+      return fail("wrong completion result");
+    ring.header.cqHead++;
+  }
+
+  close(fd);
+
+  fd = open(name);
+  if (fd == -1 || read(fd, check, sizeof(check)) != sizeof(check))
+    return fail("read back failed");
+  close(fd);
+  unlink(name);
+
+  for (i = 0; i < WRITES*CHUNK; i++) {
+    if (check[i] != 'a' + i/CHUNK)
+      return fail("file contents wrong");
+  }
+
+  printf("SUCCESS\n");
+  return 0;
+}
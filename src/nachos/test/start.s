@@ -67,3 +67,11 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(ringSetup, syscallRingSetup)
+	SYSCALLSTUB(ringEnter, syscallRingEnter)
+	SYSCALLSTUB(aioRead, syscallAsyncRead)
+	SYSCALLSTUB(aioWrite, syscallAsyncWrite)
+	SYSCALLSTUB(aioWait, syscallAsyncWait)
+	SYSCALLSTUB(sync, syscallSync)
+	SYSCALLSTUB(fsync, syscallFsync)
@@ -25,6 +25,14 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallRingSetup	14
+#define syscallRingEnter	15
+#define syscallAsyncRead	16
+#define syscallAsyncWrite	17
+#define syscallAsyncWait	18
+#define syscallSync		19
+#define syscallFsync		20
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -97,7 +105,8 @@ int exec(char *file, int argc, char *argv[]);
  * disowns the child process, so that join() cannot be used on that process
  * again.
  *
- * processID is the process ID of the child process, returned by exec().
+ * processID is the process ID of the child process, returned by exec() or
+ * fork().
  *
  * status points to an integer where the exit status of the child process will
  * be stored. This is the value the child passed to exit(). If the child exited
@@ -109,6 +118,16 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new child process that is a copy of the current process. The
+ * child shares the parent's memory copy-on-write, so neither process sees
+ * the other's later writes, and both resume just after the call.
+ *
+ * Returns the child's process ID in the parent, which can pass it to join(),
+ * and 0 in the child, or -1 if the process could not be created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -214,6 +233,24 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Write all data written to files but still buffered in the kernel to disk.
+ * The kernel writes buffered data back on its own a short while after it is
+ * written, and when the last descriptor for a file is closed; sync() makes
+ * it happen now.
+ *
+ * Returns 0.
+ */
+int sync();
+
+/**
+ * Like sync(), but only for the file referred to by fileDescriptor. Does
+ * nothing for streams.
+ *
+ * Returns 0 on success, or -1 if the descriptor is invalid.
+ */
+int fsync(int fileDescriptor);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
@@ -257,6 +294,101 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* SYSCALL RING: ringSetup, ringEnter
+ *
+ * A process can queue syscalls in a ring in its own memory and have the
+ * kernel carry out a whole batch of them in one trap. The ring is a
+ * struct ring_header followed by the submission queue, an array of
+ * struct ring_sqe, and then the completion queue, an array of struct
+ * ring_cqe, each with the same number of entries.
+ *
+ * The heads and tails count entries from zero and are never wrapped; an
+ * entry lives at index % entries. To submit, fill in sq[sqTail % entries]
+ * and increment sqTail. Each syscall carried out advances sqHead and posts
+ * its result, along with the submission's userData, at cq[cqTail % entries]
+ * before cqTail is incremented; consume completions by incrementing cqHead.
+ *
+ * halt(), exit(), fork(), ringSetup() and ringEnter() cannot be submitted
+ * through the ring; their completions carry a result of -1.
+ */
+
+struct ring_header {
+  int sqHead;		/* advanced by the kernel */
+  int sqTail;		/* advanced by the process */
+  int cqHead;		/* advanced by the process */
+  int cqTail;		/* advanced by the kernel */
+};
+
+struct ring_sqe {
+  int syscall;		/* syscall number, e.g. syscallWrite */
+  int args[4];		/* the syscall's arguments */
+  int userData;		/* copied to the completion */
+};
+
+struct ring_cqe {
+  int userData;
+  int result;		/* what the syscall returned */
+};
+
+/**
+ * Set up a syscall ring with the given number of entries (at most 256) at
+ * address ring, replacing any ring set up before. The ring's header is reset
+ * to zeros. A child created by fork() starts without a ring.
+ *
+ * Returns 0 on success, or -1 if the ring does not fit in writable memory or
+ * entries is out of range.
+ */
+int ringSetup(void *ring, int entries);
+
+/**
+ * Carry out up to toSubmit queued syscalls, in order. Stops early if the
+ * submission queue runs empty or the completion queue fills up.
+ *
+ * Returns the number of submissions consumed, or -1 if no ring is set up,
+ * its indices are corrupt, or a completion could not be written. A syscall
+ * whose completion is lost has still been carried out and consumed, and
+ * sqHead shows how far the kernel got.
+ */
+int ringEnter(int toSubmit);
+
+/* ASYNCHRONOUS I/O: aioRead, aioWrite, aioWait
+ *
+ * aioRead() and aioWrite() start a read() or write() in the kernel and
+ * return at once, while the process goes on running. Each returns a request
+ * ID, and the result the read() or write() would have returned is collected
+ * later with aioWait(). The buffer must not be touched until then.
+ *
+ * Requests on the same file descriptor share its position, and may run in
+ * any order. A request keeps its file open even if the descriptor is closed.
+ * At most 8 requests may be outstanding, counting ones that have completed
+ * but not been collected. exit() waits for requests still running.
+ */
+
+/**
+ * Start reading up to size bytes from fileDescriptor into buffer.
+ *
+ * Returns the request ID, or -1 if the descriptor is invalid or too many
+ * requests are outstanding.
+ */
+int aioRead(int fileDescriptor, char *buffer, int size);
+
+/**
+ * Start writing size bytes from buffer to fileDescriptor.
+ *
+ * Returns the request ID, or -1 if the descriptor is invalid or too many
+ * requests are outstanding.
+ */
+int aioWrite(int fileDescriptor, char *buffer, int size);
+
+/**
+ * Collect the oldest completed request, storing its ID at *request. If none
+ * has completed and block is non-zero, waits for one still running.
+ *
+ * Returns the request's result. If there was no completion to collect,
+ * stores -1 at *request and returns -1.
+ */
+int aioWait(int *request, int block);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import java.util.PriorityQueue;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -22,11 +23,16 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
+     * periodically (approximately every 500 clock ticks). Wakes every thread
+     * whose time in <tt>waitUntil()</tt> is up, then causes the current
      * thread to yield, forcing a context switch if there is another thread
      * that should be run.
      */
     public void timerInterrupt() {
+	long time = Machine.timer().getTime();
+	while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= time)
+	    sleepers.poll().thread.ready();
+
 	KThread.currentThread().yield();
     }
 
@@ -45,9 +51,30 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
 	long wakeTime = Machine.timer().getTime() + x;
-	while (wakeTime > Machine.timer().getTime())
-	    KThread.yield();
+
+	// block rather than spin, so that sleeping threads leave the CPU to
+	// the idle thread
+	boolean intStatus = Machine.interrupt().disable();
+	sleepers.add(new Sleeper(KThread.currentThread(), wakeTime));
+	KThread.sleep();
+	Machine.interrupt().restore(intStatus);
     }
+
+    private static class Sleeper implements Comparable<Sleeper> {
+	Sleeper(KThread thread, long wakeTime) {
+	    this.thread = thread;
+	    this.wakeTime = wakeTime;
+	}
+
+	public int compareTo(Sleeper other) {
+	    return Long.compare(wakeTime, other.wakeTime);
+	}
+
+	KThread thread;
+	long wakeTime;
+    }
+
+    /** Threads waiting in <tt>waitUntil()</tt>, earliest wake time first. */
+    private PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
 }
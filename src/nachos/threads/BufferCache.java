@@ -0,0 +1,744 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import nachos.machine.*;
+import nachos.filesys.*;
+
+/**
+ * A block buffer cache in front of another file system. Files are cached in
+ * fixed-size blocks, shared by every open file with the same name, so a
+ * program that is run again or a file that is read again is served from
+ * memory without touching the file system below.
+ *
+ * <p>
+ * Writes only dirty the cached blocks. A flusher thread writes dirty blocks
+ * back in the background, a while after the first of them is dirtied, or
+ * sooner once half the cache is dirty. Dirty blocks are also written back
+ * when they are evicted, when the last open file with their name is closed,
+ * and on <tt>sync()</tt>. Runs of consecutive blocks go back in one write,
+ * and runs of missing blocks come in with one read. Blocks are evicted least
+ * recently used first.
+ *
+ * <p>
+ * Each open file watches for sequential reads and, while they go on, has
+ * a read-ahead thread bring in the blocks just past them before they are
+ * asked for. The window it reads ahead starts small, doubles each time the
+ * reader catches up to it, and shrinks when the reader seeks elsewhere.
+ *
+ * <p>
+ * One lock covers the whole cache. It is let go while blocks are read in,
+ * and the blocks being read are marked busy meanwhile, so other threads can
+ * go on using the blocks already cached. Writes back to the file system
+ * below happen with the lock held.
+ */
+public class BufferCache implements FileSystem {
+    /**
+     * Allocate a new buffer cache.
+     *
+     * @param	fileSystem	the file system to cache.
+     * @param	numBlocks	the most blocks to keep in memory.
+     */
+    public BufferCache(FileSystem fileSystem, int numBlocks) {
+	Lib.assertTrue(numBlocks > 0);
+
+	this.fileSystem = fileSystem;
+	this.numBlocks = numBlocks;
+	maxRun = Math.max(1, numBlocks/4);
+	dirtyThreshold = Math.max(1, numBlocks/2);
+
+	flushDelay = Config.getInteger("ThreadedKernel.flushDelay", 5000);
+    }
+
+    /**
+     * Return the file system being cached.
+     */
+    public FileSystem getFileSystem() {
+	return fileSystem;
+    }
+
+    public OpenFile open(String name, boolean create) {
+	lock.acquire();
+
+	CachedFile file = files.get(name);
+
+	// opening with create may truncate, so nothing may be left to write
+	if (file != null && create)
+	    flush(file);
+
+	OpenFile backing = fileSystem.open(name, create);
+	if (backing == null) {
+	    lock.release();
+	    return null;
+	}
+
+	if (file == null) {
+	    file = new CachedFile(name, backing.length());
+	    files.put(name, file);
+	}
+	else if (backing.length() != file.backingLength) {
+	    // changed below us, so what we have is stale
+	    invalidate(file);
+	    file.length = file.backingLength = backing.length();
+	}
+
+	if (file.backing == null)
+	    file.backing = backing;
+	else
+	    backing.close();
+
+	file.refCount++;
+	lock.release();
+
+	return new CachedOpenFile(file);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	boolean removed = fileSystem.remove(name);
+
+	// files still open keep their blocks, but the name is free
+	CachedFile file = files.get(name);
+	if (removed && file != null) {
+	    files.remove(name);
+	    file.removed = true;
+	    if (file.refCount == 0)
+		invalidate(file);
+	}
+
+	lock.release();
+	return removed;
+    }
+
+    /**
+     * Write every dirty block back to the file system below, and have it
+     * write back whatever it holds too.
+     */
+    public void sync() {
+	lock.acquire();
+	flushAll();
+	lock.release();
+
+	if (fileSystem instanceof DurableFileSystem)
+	    ((DurableFileSystem) fileSystem).sync();
+    }
+
+    /**
+     * Write the dirty blocks of one open file back to the file system below.
+     * Does nothing if the file is not open through this cache.
+     *
+     * @param	openFile	the file to write back.
+     */
+    public void sync(OpenFile openFile) {
+	if (!(openFile instanceof CachedOpenFile) ||
+	    openFile.getFileSystem() != this)
+	    return;
+
+	CachedFile file = ((CachedOpenFile) openFile).file;
+	if (file == null)
+	    return;
+
+	lock.acquire();
+	flush(file);
+	lock.release();
+
+	if (fileSystem instanceof DurableFileSystem)
+	    ((DurableFileSystem) fileSystem).sync();
+    }
+
+    private int read(CachedFile file, int pos, byte[] buf, int offset,
+		     int length) {
+	if (pos < 0 || length < 0 || offset < 0 || offset+length > buf.length)
+	    return -1;
+
+	lock.acquire();
+
+	int end = (int) Math.min((long) pos + length, file.length);
+	int done = 0;
+	while (pos+done < end) {
+	    int blockNumber = (pos+done) / blockSize;
+	    int blockOffset = (pos+done) % blockSize;
+	    int amount = Math.min(blockSize - blockOffset, end - (pos+done));
+
+	    int lastBlock = (end-1) / blockSize;
+	    Block block = getBlock(file, blockNumber, lastBlock, true);
+	    if (block == null)
+		break;
+
+	    System.arraycopy(block.data, blockOffset, buf, offset+done, amount);
+	    done += amount;
+	}
+
+	lock.release();
+
+	return (done == 0 && pos < end) ? -1 : done;
+    }
+
+    private int write(CachedFile file, int pos, byte[] buf, int offset,
+		      int length) {
+	if (pos < 0 || length < 0 || offset < 0 || offset+length > buf.length)
+	    return -1;
+
+	lock.acquire();
+
+	int done = 0;
+	while (done < length) {
+	    int blockNumber = (pos+done) / blockSize;
+	    int blockOffset = (pos+done) % blockSize;
+	    int amount = Math.min(blockSize - blockOffset, length - done);
+
+	    // only read in what the write doesn't cover
+	    boolean whole = (blockOffset == 0 && amount == blockSize);
+	    Block block = getBlock(file, blockNumber, blockNumber, !whole);
+	    if (block == null)
+		break;
+
+	    System.arraycopy(buf, offset+done, block.data, blockOffset, amount);
+	    if (!block.dirty) {
+		block.dirty = true;
+		dirtied();
+	    }
+	    done += amount;
+
+	    file.length = Math.max(file.length, pos+done);
+	}
+
+	lock.release();
+
+	return (done == 0 && length > 0) ? -1 : done;
+    }
+
+    /**
+     * Find a block in the cache, or bring it in. A block the file system
+     * holds part of is read in if <i>fill</i> is set, along with the
+     * missing blocks after it up to <i>lastBlock</i>. Called with the lock
+     * held.
+     *
+     * @return	the block, or <tt>null</tt> if it could not be read.
+     */
+    private Block getBlock(CachedFile file, int blockNumber, int lastBlock,
+			   boolean fill) {
+	BlockKey key = new BlockKey(file, blockNumber);
+	boolean counted = false;
+
+	while (true) {
+	    Block block = blocks.get(key);
+
+	    if (!counted) {
+		if (block != null)
+		    Machine.stats().numCacheHits++;
+		else
+		    Machine.stats().numCacheMisses++;
+		counted = true;
+	    }
+
+	    // another thread is reading it in; it may be dropped meanwhile
+	    if (block != null && block.busy) {
+		blockRead.sleep();
+		continue;
+	    }
+
+	    if (block != null) {
+		if (block.readAhead) {
+		    Machine.stats().numReadAheadHits++;
+		    block.readAhead = false;
+		}
+		return block;
+	    }
+
+	    if (!fill || (long) blockNumber*blockSize >= file.backingLength)
+		return insert(new Block(file, blockNumber));
+
+	    if (readRun(file, blockNumber, lastBlock, false) == -1)
+		return null;
+	}
+    }
+
+    /**
+     * Read the run of missing blocks starting at <i>blockNumber</i> in one
+     * go, up to <i>lastBlock</i> or the end of what the file system holds.
+     * Called with the lock held, which is released during the read; the
+     * blocks are in the cache but busy until it completes.
+     *
+     * @param	readAhead	<tt>true</tt> if the blocks are being read
+     *				before they are asked for.
+     * @return	the number of blocks read, or -1 on error.
+     */
+    private int readRun(CachedFile file, int blockNumber, int lastBlock,
+			boolean readAhead) {
+	int run = 1;
+	while (blockNumber+run <= lastBlock && run < maxRun &&
+	       (long) (blockNumber+run)*blockSize < file.backingLength &&
+	       !blocks.containsKey(new BlockKey(file, blockNumber+run)))
+	    run++;
+
+	Block[] newBlocks = new Block[run];
+	for (int i=0; i<run; i++) {
+	    newBlocks[i] = new Block(file, blockNumber+i);
+	    newBlocks[i].busy = true;
+	    newBlocks[i].readAhead = readAhead;
+	    insert(newBlocks[i]);
+	}
+
+	// the file can't be closed below us while we read
+	file.numReading++;
+	lock.release();
+
+	byte[] data = new byte[run*blockSize];
+	int amount =
+	    file.backing.read(blockNumber*blockSize, data, 0, data.length);
+
+	lock.acquire();
+	file.numReading--;
+
+	for (int i=0; i<run; i++) {
+	    if (amount >= 0) {
+		System.arraycopy(data, i*blockSize, newBlocks[i].data, 0,
+				 blockSize);
+	    }
+	    else if (blocks.get(newBlocks[i].key) == newBlocks[i]) {
+		blocks.remove(newBlocks[i].key);
+		file.numBlocks--;
+	    }
+	    newBlocks[i].busy = false;
+	}
+	blockRead.wakeAll();
+
+	if (amount < 0)
+	    return -1;
+
+	Machine.stats().numCacheReads++;
+	Machine.stats().numCacheBlocksRead += run;
+	return run;
+    }
+
+    /**
+     * Queue blocks of a file for the read-ahead thread to bring in, starting
+     * the thread if this is the first request.
+     */
+    private void readAhead(CachedFile file, int firstBlock, int lastBlock) {
+	lock.acquire();
+
+	readAheadQueue.add(new ReadAhead(file, firstBlock, lastBlock));
+	readAheadQueued.wake();
+
+	if (readAheadThread == null) {
+	    readAheadThread = new KThread(new Runnable() {
+		    public void run() { readAheadLoop(); }
+		});
+	    readAheadThread.setName("read-ahead").fork();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * The read-ahead thread: bring in the blocks of each queued request that
+     * aren't cached yet. Never returns.
+     */
+    private void readAheadLoop() {
+	lock.acquire();
+
+	while (true) {
+	    while (readAheadQueue.isEmpty())
+		readAheadQueued.sleep();
+
+	    ReadAhead request = readAheadQueue.removeFirst();
+	    CachedFile file = request.file;
+
+	    for (int i=request.firstBlock; i<=request.lastBlock; ) {
+		// stop if the file was closed, or at the end of it
+		if (file.backing == null ||
+		    (long) i*blockSize >= file.backingLength)
+		    break;
+
+		if (blocks.containsKey(new BlockKey(file, i))) {
+		    i++;
+		    continue;
+		}
+
+		int run = readRun(file, i, request.lastBlock, true);
+		if (run == -1)
+		    break;
+
+		Machine.stats().numReadAheadBlocks += run;
+		i += run;
+	    }
+	}
+    }
+
+    /**
+     * Add a block to the cache, evicting the least recently used blocks to
+     * make room. Blocks still being read in are passed over, so the cache
+     * can briefly hold more blocks than it should. Called with the lock
+     * held.
+     */
+    private Block insert(Block block) {
+	if (blocks.put(block.key, block) == null)
+	    block.file.numBlocks++;
+
+	while (blocks.size() > numBlocks) {
+	    Block victim = null;
+	    for (Block b : blocks.values()) {
+		if (!b.busy && b != block) {
+		    victim = b;
+		    break;
+		}
+	    }
+	    if (victim == null)
+		break;
+
+	    if (victim.dirty)
+		writeBack(victim.file, Collections.singletonList(victim));
+
+	    blocks.remove(victim.key);
+	    Machine.stats().numCacheEvictions++;
+	    if (--victim.file.numBlocks == 0 && victim.file.refCount == 0 &&
+		files.get(victim.file.name) == victim.file)
+		files.remove(victim.file.name);
+	}
+
+	return block;
+    }
+
+    /**
+     * Count a newly dirtied block, and get the flusher going if it is the
+     * first. Called with the lock held.
+     */
+    private void dirtied() {
+	if (numDirty++ > 0)
+	    return;
+
+	if (flusherThread == null) {
+	    flusherThread = new KThread(new Runnable() {
+		    public void run() { flushLoop(); }
+		});
+	    flusherThread.setName("flusher").fork();
+	}
+	else {
+	    firstDirtied.wake();
+	}
+    }
+
+    /**
+     * The flusher thread: once there are dirty blocks, give later writes
+     * <tt>flushDelay</tt> ticks to land next to them, or until half the
+     * cache is dirty, then write everything back. Never returns.
+     */
+    private void flushLoop() {
+	lock.acquire();
+
+	while (true) {
+	    while (numDirty == 0)
+		firstDirtied.sleep();
+
+	    long deadline = Machine.timer().getTime() + flushDelay;
+	    while (numDirty < dirtyThreshold &&
+		   Machine.timer().getTime() < deadline) {
+		lock.release();
+		ThreadedKernel.alarm.waitUntil(Math.max(1, flushDelay/4));
+		lock.acquire();
+	    }
+
+	    Machine.stats().numCacheFlushes++;
+	    flushAll();
+	}
+    }
+
+    /**
+     * Write every dirty block back. Called with the lock held.
+     */
+    private void flushAll() {
+	ArrayList<CachedFile> dirty = new ArrayList<CachedFile>();
+	for (Block block : blocks.values()) {
+	    if (block.dirty && !dirty.contains(block.file))
+		dirty.add(block.file);
+	}
+
+	for (CachedFile file : dirty)
+	    flush(file);
+    }
+
+    /**
+     * Write all of a file's dirty blocks back. Called with the lock held.
+     */
+    private void flush(CachedFile file) {
+	ArrayList<Block> dirty = new ArrayList<Block>();
+	for (Block block : blocks.values()) {
+	    if (block.file == file && block.dirty)
+		dirty.add(block);
+	}
+
+	if (!dirty.isEmpty())
+	    writeBack(file, dirty);
+    }
+
+    /**
+     * Write blocks of one file back in block order, one write for each run
+     * of consecutive blocks. Called with the lock held.
+     */
+    private void writeBack(CachedFile file, List<Block> dirty) {
+	Lib.assertTrue(file.backing != null);
+
+	Block[] sorted = dirty.toArray(new Block[dirty.size()]);
+	Arrays.sort(sorted);
+
+	for (int i=0; i<sorted.length; ) {
+	    int run = 1;
+	    while (i+run < sorted.length &&
+		   sorted[i+run].number == sorted[i].number+run)
+		run++;
+
+	    int pos = sorted[i].number * blockSize;
+	    int length = (int) Math.min((long) run*blockSize,
+					file.length - pos);
+
+	    if (length > 0) {
+		byte[] data = new byte[run*blockSize];
+		for (int j=0; j<run; j++) {
+		    System.arraycopy(sorted[i+j].data, 0, data, j*blockSize,
+				     blockSize);
+		}
+
+		file.backing.write(pos, data, 0, length);
+		file.backingLength = Math.max(file.backingLength, pos+length);
+		Machine.stats().numCacheBlocksWritten += run;
+	    }
+
+	    for (int j=0; j<run; j++)
+		sorted[i+j].dirty = false;
+	    numDirty -= run;
+	    i += run;
+	}
+    }
+
+    /**
+     * Drop all of a file's blocks without writing them. Called with the lock
+     * held.
+     */
+    private void invalidate(CachedFile file) {
+	for (Iterator<Block> it = blocks.values().iterator(); it.hasNext(); ) {
+	    Block block = it.next();
+	    if (block.file == file) {
+		if (block.dirty)
+		    numDirty--;
+		it.remove();
+	    }
+	}
+	file.numBlocks = 0;
+    }
+
+    private void close(CachedFile file) {
+	lock.acquire();
+
+	// the read-ahead thread may be reading from the file below
+	while (file.refCount == 1 && file.numReading > 0)
+	    blockRead.sleep();
+
+	if (--file.refCount == 0) {
+	    flush(file);
+	    file.backing.close();
+	    file.backing = null;
+
+	    if (file.removed)
+		invalidate(file);
+	    else if (file.numBlocks == 0)
+		files.remove(file.name);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * A file as the cache sees it, shared by every open file with the same
+     * name.
+     */
+    private static class CachedFile {
+	CachedFile(String name, int length) {
+	    this.name = name;
+	    this.length = this.backingLength = length;
+	}
+
+	String name;
+	/** The file's length, including data not yet written back. */
+	int length;
+	/** The file's length in the file system below. */
+	int backingLength;
+	/** The file below, while any open file refers to this one. */
+	OpenFile backing = null;
+	int refCount = 0;
+	int numBlocks = 0;
+	/** Reads from the file below in progress. */
+	int numReading = 0;
+	boolean removed = false;
+    }
+
+    private static class BlockKey {
+	BlockKey(CachedFile file, int number) {
+	    this.file = file;
+	    this.number = number;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof BlockKey))
+		return false;
+
+	    BlockKey key = (BlockKey) o;
+	    return key.file == file && key.number == number;
+	}
+
+	public int hashCode() {
+	    return System.identityHashCode(file) * 31 + number;
+	}
+
+	CachedFile file;
+	int number;
+    }
+
+    private static class Block implements Comparable<Block> {
+	Block(CachedFile file, int number) {
+	    this.file = file;
+	    this.number = number;
+	    key = new BlockKey(file, number);
+	}
+
+	public int compareTo(Block block) {
+	    return number - block.number;
+	}
+
+	CachedFile file;
+	int number;
+	BlockKey key;
+	byte[] data = new byte[blockSize];
+	boolean dirty = false;
+	/** Read ahead and not yet asked for. */
+	boolean readAhead = false;
+	/** Being read in, with the cache's lock released. */
+	boolean busy = false;
+    }
+
+    private static class ReadAhead {
+	ReadAhead(CachedFile file, int firstBlock, int lastBlock) {
+	    this.file = file;
+	    this.firstBlock = firstBlock;
+	    this.lastBlock = lastBlock;
+	}
+
+	CachedFile file;
+	int firstBlock, lastBlock;
+    }
+
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(CachedFile file) {
+	    super(BufferCache.this, file.name);
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (file == null)
+		return -1;
+
+	    int amount = BufferCache.this.read(file, pos, buf, offset, length);
+	    if (amount > 0)
+		updateReadAhead(pos, amount);
+
+	    return amount;
+	}
+
+	/**
+	 * Adjust the read-ahead window after a read, and queue the next
+	 * window of blocks once the reader is halfway into the last one.
+	 */
+	private void updateReadAhead(int pos, int amount) {
+	    int lastBlock = (pos+amount-1) / blockSize;
+	    boolean sequential = (pos == nextPos);
+	    nextPos = pos + amount;
+
+	    if (!sequential) {
+		window /= 4;
+		if (window < minWindow)
+		    window = 0;
+		aheadBlock = lastBlock + 1;
+		return;
+	    }
+
+	    if (window == 0) {
+		window = minWindow;
+		aheadBlock = lastBlock + 1;
+	    }
+	    else if (lastBlock >= aheadBlock - window/2) {
+		window = Math.min(window*2, maxRun);
+		aheadBlock = Math.max(aheadBlock, lastBlock + 1);
+	    }
+	    else {
+		return;
+	    }
+
+	    int firstBlock = aheadBlock;
+	    aheadBlock += window;
+	    readAhead(file, firstBlock, aheadBlock - 1);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (file == null)
+		return -1;
+
+	    return BufferCache.this.write(file, pos, buf, offset, length);
+	}
+
+	public int length() {
+	    return (file == null) ? -1 : file.length;
+	}
+
+	public void close() {
+	    if (file != null)
+		BufferCache.this.close(file);
+	    file = null;
+	}
+
+	private CachedFile file;
+	/** Where the next read starts if reading is sequential. */
+	private int nextPos = 0;
+	/** The number of blocks to read ahead, or 0 if not reading ahead. */
+	private int window = 0;
+	/** The first block not yet queued for read-ahead. */
+	private int aheadBlock = 0;
+    }
+
+    private FileSystem fileSystem;
+    private int numBlocks;
+    /** The most blocks to read or read ahead at once. */
+    private int maxRun;
+
+    /** Cached files by name. */
+    private HashMap<String, CachedFile> files =
+	new HashMap<String, CachedFile>();
+    /** All cached blocks, least recently used first. */
+    private LinkedHashMap<BlockKey, Block> blocks =
+	new LinkedHashMap<BlockKey, Block>(16, 0.75f, true);
+
+    private LinkedList<ReadAhead> readAheadQueue = new LinkedList<ReadAhead>();
+    private KThread readAheadThread = null;
+
+    private int numDirty = 0;
+    /** Dirty blocks that get the flusher going without waiting. */
+    private int dirtyThreshold;
+    private int flushDelay;
+    private KThread flusherThread = null;
+
+    private Lock lock = new Lock();
+    private Condition2 readAheadQueued = new Condition2(lock);
+    /** Woken each time a run of busy blocks has been read in. */
+    private Condition2 blockRead = new Condition2(lock);
+    private Condition2 firstDirtied = new Condition2(lock);
+
+    private static final int blockSize = 1024;
+    private static final int minWindow = 2;
+}
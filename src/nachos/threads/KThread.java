@@ -329,7 +329,13 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) KThread.yield(); }
+	    public void run() {
+		while (true) {
+		    if (idleTask != null)
+			idleTask.run();
+		    KThread.yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -338,6 +344,18 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * Give the idle thread some work to do each time it runs, such as
+     * clearing free memory ahead of time. Like the idle thread itself, the
+     * task must never block, and it should return quickly so that the idle
+     * thread can notice when another thread becomes ready.
+     *
+     * @param	task	the work to do when idle, or <tt>null</tt> for none.
+     */
+    public static void setIdleTask(Runnable task) {
+	idleTask = task;
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
@@ -714,6 +732,7 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    private static Runnable idleTask = null;
     
     private static boolean[] oughtToYield = new boolean[100];
     private static int numTimesBefore = 0;
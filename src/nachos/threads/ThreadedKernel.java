@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import nachos.filesys.*;
 
 /**
  * A multi-threaded OS kernel.
@@ -22,6 +23,9 @@ public class ThreadedKernel extends Kernel {
 	String schedulerName = Config.getString("ThreadedKernel.scheduler");
 	scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+	if (Machine.disk() != null)
+	    synchDisk = new SynchDisk(Machine.disk());
+
 	// set fileSystem
 	String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 	if (fileSystemName != null)
@@ -31,6 +35,23 @@ public class ThreadedKernel extends Kernel {
 	else
 	    fileSystem = null;
 
+	// the cache is off unless asked for; a file system in memory gains
+	// nothing from one
+	int cacheBlocks = Config.getInteger("ThreadedKernel.bufferCacheBlocks",
+					    0);
+	if (fileSystem != null && cacheBlocks > 0 &&
+	    !(fileSystem instanceof RamFileSystem)) {
+	    bufferCache = new BufferCache(fileSystem, cacheBlocks);
+	    fileSystem = bufferCache;
+	}
+
+	if (fileSystem != null &&
+	    Config.getBoolean("ThreadedKernel.mountTmp", false)) {
+	    MountFileSystem mounts = new MountFileSystem(fileSystem);
+	    mounts.mount("/tmp/", new RamFileSystem(false));
+	    fileSystem = mounts;
+	}
+
 	// start threading
 	new KThread(null);
 
@@ -72,6 +93,18 @@ public class ThreadedKernel extends Kernel {
 	// if (Machine.bank() != null) {
 	//     ElevatorBank.selfTest();
 	// }
+
+	if (Machine.disk() != null &&
+	    Config.getBoolean("SynchDisk.selfTest", false))
+	    SynchDisk.selfTest();
+	if (Machine.disk() != null &&
+	    Config.getBoolean("DiskFileSystem.selfTest", false))
+	    DiskFileSystem.selfTest();
+	if (Machine.disk() != null &&
+	    Config.getBoolean("LogFileSystem.selfTest", false))
+	    LogFileSystem.selfTest();
+	if (Config.getBoolean("RamFileSystem.selfTest", false))
+	    RamFileSystem.selfTest();
     }
     
     /**
@@ -85,15 +118,31 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	syncFileSystem();
 	Machine.halt();
     }
 
+    /**
+     * Write back everything the file system holds back, in the buffer cache
+     * and below it.
+     */
+    public static void syncFileSystem() {
+	if (bufferCache != null)
+	    bufferCache.sync();
+	else if (fileSystem instanceof DurableFileSystem)
+	    ((DurableFileSystem) fileSystem).sync();
+    }
+
     /** Globally accessible reference to the scheduler. */
     public static Scheduler scheduler = null;
     /** Globally accessible reference to the alarm. */
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
     public static FileSystem fileSystem = null;
+    /** Globally accessible reference to the disk, or <tt>null</tt>. */
+    public static SynchDisk synchDisk = null;
+    /** The buffer cache in front of the file system, or <tt>null</tt>. */
+    public static BufferCache bufferCache = null;
 
     // dummy variables to make javac smarter
     private static RoundRobinScheduler dummy1 = null;
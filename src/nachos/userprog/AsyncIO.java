@@ -0,0 +1,131 @@
+package nachos.userprog;
+
+import java.util.LinkedList;
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A process's outstanding asynchronous I/O operations. Each operation runs
+ * on a kernel thread of its own, so the process can go on running while the
+ * file system waits, and its result is queued until the process collects it
+ * with <tt>waitForCompletion()</tt>.
+ */
+public class AsyncIO {
+    /**
+     * An operation to run on a worker thread.
+     */
+    public interface Operation {
+	/**
+	 * Carry out the operation.
+	 *
+	 * @return	the result to report to the process.
+	 */
+	public int perform();
+    }
+
+    /**
+     * Allocate a new, idle set of operations.
+     *
+     * @param	name		the name to give worker threads.
+     * @param	maxOutstanding	the most operations that may be in
+     *				progress or waiting to be collected at once.
+     */
+    public AsyncIO(String name, int maxOutstanding) {
+	this.name = name;
+	this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * Start an operation on a new worker thread.
+     *
+     * @param	operation	the operation to start.
+     * @return	the operation's request ID, or -1 if too many are
+     *		outstanding.
+     */
+    public int start(final Operation operation) {
+	lock.acquire();
+	if (numOutstanding >= maxOutstanding) {
+	    lock.release();
+	    return -1;
+	}
+
+	final int request = nextRequest++;
+	numOutstanding++;
+	numRunning++;
+	lock.release();
+
+	new KThread(new Runnable() {
+		public void run() {
+		    int result = operation.perform();
+
+		    lock.acquire();
+		    completions.add(new int[] { request, result });
+		    numRunning--;
+		    completed.wakeAll();
+		    lock.release();
+		}
+	    }).setName(name + " request " + request).fork();
+
+	Machine.stats().numAsyncRequests++;
+	return request;
+    }
+
+    /**
+     * Collect the oldest completed operation.
+     *
+     * @param	block	<tt>true</tt> to wait for an operation in progress
+     *			to complete if none has yet.
+     * @return	the operation's request ID and result, or <tt>null</tt> if
+     *		none has completed and either <i>block</i> is false or none
+     *		is in progress.
+     */
+    public int[] waitForCompletion(boolean block) {
+	lock.acquire();
+	while (block && completions.isEmpty() && numRunning > 0)
+	    completed.sleep();
+
+	int[] completion = completions.poll();
+	if (completion != null)
+	    numOutstanding--;
+	lock.release();
+
+	return completion;
+    }
+
+    /**
+     * Wait for every operation in progress to complete, leaving their
+     * completions to be collected.
+     */
+    public void waitForRunning() {
+	lock.acquire();
+	while (numRunning > 0)
+	    completed.sleep();
+	lock.release();
+    }
+
+    /**
+     * Wait for every operation in progress to complete, and discard all
+     * completions. Called before a process exits, since operations still
+     * running refer to its memory and files.
+     */
+    public void drain() {
+	lock.acquire();
+	while (numRunning > 0)
+	    completed.sleep();
+
+	completions.clear();
+	numOutstanding = 0;
+	lock.release();
+    }
+
+    private String name;
+    private int maxOutstanding;
+    private int nextRequest = 0;
+    /** Operations running or waiting to be collected. */
+    private int numOutstanding = 0;
+    private int numRunning = 0;
+    private LinkedList<int[]> completions = new LinkedList<int[]>();
+
+    private Lock lock = new Lock();
+    private Condition2 completed = new Condition2(lock);
+}
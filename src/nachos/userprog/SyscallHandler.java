@@ -0,0 +1,84 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * The handler for one system call, registered by number in the syscall table
+ * with <tt>UserProcess.registerSyscall()</tt>. Each call is counted in
+ * <tt>Stats</tt>, along with the ticks that pass before it returns.
+ *
+ * <p>
+ * Syscalls that return to the caller in the usual way may also be submitted
+ * in batches through a <tt>SyscallRing</tt>; ones that don't, such as
+ * <tt>exit()</tt>, are registered as not batchable.
+ */
+public abstract class SyscallHandler {
+    /**
+     * Allocate a new syscall handler.
+     *
+     * @param	name	the syscall's name, as user programs call it.
+     */
+    public SyscallHandler(String name) {
+	this(name, true);
+    }
+
+    /**
+     * Allocate a new syscall handler.
+     *
+     * @param	name		the syscall's name, as user programs call it.
+     * @param	batchable	<tt>true</tt> if the syscall may be submitted
+     *				through a syscall ring.
+     */
+    public SyscallHandler(String name, boolean batchable) {
+	this.name = name;
+	this.batchable = batchable;
+    }
+
+    /**
+     * Carry out the syscall for a process.
+     *
+     * @param	process	the process making the call.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public abstract int handle(UserProcess process, int a0, int a1, int a2,
+			       int a3);
+
+    /**
+     * Carry out the syscall, counting the call and the ticks it takes.
+     */
+    final int call(UserProcess process, int a0, int a1, int a2, int a3) {
+	Stats stats = Machine.stats();
+
+	// exit() and halt() never return, so they are counted up front
+	stats.numSyscalls[number]++;
+	long start = Machine.timer().getTime();
+	int result = handle(process, a0, a1, a2, a3);
+	stats.syscallTicks[number] += Machine.timer().getTime() - start;
+
+	return result;
+    }
+
+    /**
+     * Test whether the syscall may be submitted through a syscall ring.
+     */
+    public boolean isBatchable() {
+	return batchable;
+    }
+
+    /**
+     * Return the syscall's name.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /** The number the handler is registered under. */
+    int number;
+
+    private String name;
+    private boolean batchable;
+}
@@ -0,0 +1,155 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A submission and completion ring in a process's virtual memory, through
+ * which the process can queue many syscalls and have the kernel carry them
+ * all out in one trap. The layout, in 32-bit words, is:
+ *
+ * <pre>
+ * sqHead, sqTail, cqHead, cqTail
+ * sq[entries]: syscall, a0, a1, a2, a3, userData
+ * cq[entries]: userData, result
+ * </pre>
+ *
+ * <p>
+ * The heads and tails count entries from zero and are never wrapped; an
+ * entry's slot is its count modulo the ring size. The process adds
+ * submissions at <tt>sqTail</tt> and takes completions from
+ * <tt>cqHead</tt>, and the kernel does the rest. Nothing the process writes
+ * is trusted: indices that don't make sense fail the whole call.
+ */
+public class SyscallRing {
+    /**
+     * Attach a ring that a process has laid out in its memory, and reset its
+     * heads and tails.
+     *
+     * @param	process	the process owning the ring.
+     * @param	vaddr	the address of the ring.
+     * @param	entries	the number of entries in each queue.
+     * @return	the ring, or <tt>null</tt> if it does not fit in the process's
+     *		writable memory.
+     */
+    public static SyscallRing attach(UserProcess process, int vaddr,
+				     int entries) {
+	if (vaddr < 0 || (vaddr & 3) != 0 || entries < 1 ||
+	    entries > maxEntries)
+	    return null;
+
+	SyscallRing ring = new SyscallRing(process, vaddr, entries);
+
+	// the whole ring must be mapped, and the queues writable
+	int size = ring.cqBase + entries*cqeSize - vaddr;
+	if (process.writeVirtualMemory(vaddr, new byte[size]) != size)
+	    return null;
+
+	return ring;
+    }
+
+    private SyscallRing(UserProcess process, int vaddr, int entries) {
+	this.process = process;
+	this.vaddr = vaddr;
+	this.entries = entries;
+
+	sqBase = vaddr + headerSize;
+	cqBase = sqBase + entries*sqeSize;
+    }
+
+    /**
+     * Carry out up to <i>toSubmit</i> queued syscalls, in order, posting a
+     * completion for each. Stops early when the submission queue is empty
+     * or the completion queue is full. A syscall that has run is consumed
+     * even if its completion can't be written, so it never runs twice.
+     *
+     * @param	toSubmit	the most submissions to consume.
+     * @return	the number of submissions consumed, or -1 if the ring's
+     *		indices are corrupt or can't be read or written, or a
+     *		completion could not be posted.
+     */
+    public int enter(int toSubmit) {
+	if (process.readVirtualMemory(vaddr, header) != headerSize)
+	    return -1;
+
+	int sqHead = Lib.bytesToInt(header, 0);
+	int sqTail = Lib.bytesToInt(header, 4);
+	int cqHead = Lib.bytesToInt(header, 8);
+	int cqTail = Lib.bytesToInt(header, 12);
+
+	if (sqTail - sqHead < 0 || sqTail - sqHead > entries ||
+	    cqTail - cqHead < 0 || cqTail - cqHead > entries)
+	    return -1;
+
+	int submitted = 0;
+	boolean lost = false;
+	while (submitted < toSubmit && sqHead != sqTail &&
+	       cqTail - cqHead < entries) {
+	    int sqe = sqBase + (sqHead % entries + entries) % entries * sqeSize;
+	    if (process.readVirtualMemory(sqe, entry) != sqeSize)
+		break;
+
+	    int result = submit(Lib.bytesToInt(entry, 0),
+				Lib.bytesToInt(entry, 4),
+				Lib.bytesToInt(entry, 8),
+				Lib.bytesToInt(entry, 12),
+				Lib.bytesToInt(entry, 16));
+
+	    sqHead++;
+	    submitted++;
+
+	    int cqe = cqBase + (cqTail % entries + entries) % entries * cqeSize;
+	    Lib.bytesFromInt(completion, 0, Lib.bytesToInt(entry, 20));
+	    Lib.bytesFromInt(completion, 4, result);
+	    if (process.writeVirtualMemory(cqe, completion) != cqeSize) {
+		Lib.debug(dbgProcess, "\tcompletion for syscall " +
+			  Lib.bytesToInt(entry, 0) + " lost");
+		lost = true;
+		break;
+	    }
+
+	    cqTail++;
+	}
+
+	// publish the new indices together, once every entry is done
+	Lib.bytesFromInt(header, 0, sqHead);
+	Lib.bytesFromInt(header, 12, cqTail);
+	if (process.writeVirtualMemory(vaddr, header, 0, 4) != 4 ||
+	    process.writeVirtualMemory(vaddr+12, header, 12, 4) != 4)
+	    return -1;
+
+	Machine.stats().numRingBatches++;
+	Machine.stats().numRingSyscalls += submitted;
+	return lost ? -1 : submitted;
+    }
+
+    /**
+     * Carry out one submission.
+     *
+     * @return	the syscall's result, or -1 if it can't be batched.
+     */
+    private int submit(int syscall, int a0, int a1, int a2, int a3) {
+	SyscallHandler handler = UserProcess.getSyscallHandler(syscall);
+	if (handler == null || !handler.isBatchable()) {
+	    Lib.debug(dbgProcess, "\tsyscall " + syscall + " can't be batched");
+	    return -1;
+	}
+
+	return handler.call(process, a0, a1, a2, a3);
+    }
+
+    private UserProcess process;
+    private int vaddr, entries;
+    private int sqBase, cqBase;
+
+    private byte[] header = new byte[headerSize];
+    private byte[] entry = new byte[sqeSize];
+    private byte[] completion = new byte[cqeSize];
+
+    /** The largest ring a process may set up. */
+    public static final int maxEntries = 256;
+
+    private static final int headerSize = 16;
+    private static final int sqeSize = 24;
+    private static final int cqeSize = 8;
+    private static final char dbgProcess = 'a';
+}
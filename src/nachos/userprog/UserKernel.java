@@ -1,5 +1,6 @@
 package nachos.userprog;
 
+import java.util.Arrays;
 import nachos.machine.*;
 import nachos.threads.*;
 
@@ -32,6 +33,23 @@ public class UserKernel extends ThreadedKernel {
 	for (int i = numPhysPages - 1; i >= 0; i--) {
 	    freeFramesList.prepend(i);
 	}
+	frameRefCounts = new int[numPhysPages];
+
+	// Keep some free frames cleared ahead of time, so that stack and bss
+	// pages don't have to be zeroed while a process waits for them
+	zeroedFramesList = new DLList();
+	zeroedPoolSize = Config.getInteger("UserKernel.zeroedPoolSize",
+					   numPhysPages/4);
+
+	// only the idle thread refills the pool; a low-priority kernel thread
+	// would just take turns with user processes, since the round-robin
+	// scheduler ignores priorities
+	KThread.setIdleTask(new Runnable() {
+		public void run() {
+		    if (zeroFreeFrame())
+			Machine.stats().numFramesZeroedIdle++;
+		}
+	    });
 
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -125,23 +143,127 @@ public class UserKernel extends ThreadedKernel {
      * if request can't be completed
      */
     public static int[] allocateFrames(int requested) {
-	if (freeFramesList.size() < requested) {
+	// the lists lock themselves, so keep other threads out between calls
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (numFreeFrames() < requested) {
+	    Machine.interrupt().restore(intStatus);
 	    return null; // Not enough free frames
 	}
 
+	// use up dirty frames before spending ones that were already cleared
 	int[] frames = new int[requested];
 	for (int i = 0; i < requested; i++) {
-	    Integer frameNumber = (Integer) freeFramesList.removeHead();
+	    DLList list =
+		freeFramesList.isEmpty() ? zeroedFramesList : freeFramesList;
+	    Integer frameNumber = (Integer) list.removeHead();
 	    frames[i] = frameNumber;
+	    frameRefCounts[frameNumber] = 1;
 	}
+
+	Machine.interrupt().restore(intStatus);
 	return frames;
     }
 
     /**
-     * put frameNumber back in the free frames list
+     * return a free frame filled with zeros, taking one from the pool of
+     * pre-zeroed frames when possible so that nothing has to be cleared on
+     * the caller's path
+     *
+     * @return a frame number, or -1 if no frame is free
+     */
+    public static int allocateZeroedFrame() {
+	boolean intStatus = Machine.interrupt().disable();
+	int frameNumber;
+
+	if (!zeroedFramesList.isEmpty()) {
+	    frameNumber = (Integer) zeroedFramesList.removeHead();
+	    frameRefCounts[frameNumber] = 1;
+	    Machine.stats().numZeroedHits++;
+	}
+	else {
+	    int[] frames = allocateFrames(1);
+	    if (frames == null) {
+		Machine.interrupt().restore(intStatus);
+		return -1;
+	    }
+
+	    frameNumber = frames[0];
+	    zeroFrame(frameNumber);
+	    Machine.stats().numZeroedMisses++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return frameNumber;
+    }
+
+    /**
+     * @return the number of frames currently free, zeroed or not
+     */
+    public static int numFreeFrames() {
+	return freeFramesList.size() + zeroedFramesList.size();
+    }
+
+    /**
+     * drop one reference to frameNumber, putting it back in the free frames
+     * list once no process maps it any more
      */
     public static void releaseFrame(int frameNumber) {
-	freeFramesList.insert(frameNumber, frameNumber);
+	Lib.assertTrue(frameRefCounts[frameNumber] > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+	if (--frameRefCounts[frameNumber] == 0)
+	    freeFramesList.insert(frameNumber, frameNumber);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * add a reference to an allocated frame that another page table now
+     * maps (e.g. a frame shared copy-on-write by fork)
+     */
+    public static void shareFrame(int frameNumber) {
+	Lib.assertTrue(frameRefCounts[frameNumber] > 0);
+
+	frameRefCounts[frameNumber]++;
+    }
+
+    /**
+     * @return the number of page tables currently mapping frameNumber
+     */
+    public static int frameRefCount(int frameNumber) {
+	return frameRefCounts[frameNumber];
+    }
+
+    /**
+     * move one frame from the free frames list to the pool of pre-zeroed
+     * frames, unless the pool is already full. This never blocks, so the
+     * idle thread can call it.
+     *
+     * @return true if a frame was cleared
+     */
+    private static boolean zeroFreeFrame() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean cleared = false;
+	if (zeroedFramesList.size() < zeroedPoolSize &&
+	    !freeFramesList.isEmpty()) {
+	    Integer frameNumber = (Integer) freeFramesList.removeHead();
+	    zeroFrame(frameNumber);
+	    zeroedFramesList.prepend(frameNumber);
+	    cleared = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return cleared;
+    }
+
+    /**
+     * fill frameNumber with zeros
+     */
+    private static void zeroFrame(int frameNumber) {
+	int pageSize = Processor.pageSize;
+	Arrays.fill(Machine.processor().getMemory(), frameNumber*pageSize,
+		    (frameNumber+1)*pageSize, (byte) 0);
     }
 
     /** Globally accessible reference to the synchronized console. */
@@ -149,6 +271,12 @@ public class UserKernel extends ThreadedKernel {
 
     /** List of free physical frames for paging */
     private static DLList freeFramesList;
+    /** Number of page tables mapping each physical frame */
+    private static int[] frameRefCounts;
+    /** Free frames that have already been filled with zeros */
+    private static DLList zeroedFramesList;
+    /** Number of pre-zeroed frames to keep, from UserKernel.zeroedPoolSize */
+    private static int zeroedPoolSize;
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
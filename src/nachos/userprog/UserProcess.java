@@ -1,8 +1,11 @@
 package nachos.userprog;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
 import nachos.machine.*;
 import nachos.threads.*;
+import nachos.filesys.*;
 
 
 /**
@@ -22,10 +25,12 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+	// the page table is built by load() or forkAddressSpace()
+	pid = nextPid++;
+	asyncIO = new AsyncIO("process " + pid, maxAsyncRequests);
+
+	fileTable[0] = new FileRef(UserKernel.console.openForReading());
+	fileTable[1] = new FileRef(UserKernel.console.openForWriting());
     }
     
     /**
@@ -51,6 +56,7 @@ public class UserProcess {
 	if (!load(name, args))
 	    return false;
 	
+	numLiveProcesses++;
 	new UThread(this).setName(name).fork();
 
 	return true;
@@ -144,11 +150,12 @@ public class UserProcess {
 	    int pageOffset = Processor.offsetFromAddress(vaddr);
 
 	    // invalid address
-	    if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null || !pageTable[vpn].valid) {
+	    TranslationEntry entry = lookupPage(vpn);
+	    if (entry == null) {
 		return totalRead;
 	    }
 
-	    int ppn = pageTable[vpn].ppn;
+	    int ppn = entry.ppn;
 
 	    // physical address
 	    int paddr = ppn * pageSize + pageOffset;
@@ -218,16 +225,20 @@ public class UserProcess {
 	    int vpn = Processor.pageFromAddress(vaddr);
 	    int pageOffset = Processor.offsetFromAddress(vaddr);
 
-	    if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null || !pageTable[vpn].valid) {
+	    TranslationEntry entry = lookupPage(vpn);
+	    if (entry == null) {
 		return totalWritten; // Invalid page - stop writing
 	    }
 
-	    // Check if page is read-only
-	    if (pageTable[vpn].readOnly) {
-		return totalWritten;
+	    // Check if page is read-only, giving a copy-on-write page its own
+	    // frame first and then looking it up again
+	    if (entry.readOnly) {
+		if (!breakCopyOnWrite(vpn))
+		    return totalWritten;
+		continue;
 	    }
 
-	    int ppn = pageTable[vpn].ppn;
+	    int ppn = entry.ppn;
 	    int paddr = ppn * pageSize + pageOffset;
 
 	    // Calculate how much to write to this page (don't cross page boundary)
@@ -243,8 +254,7 @@ public class UserProcess {
 	    System.arraycopy(data, offset, memory, paddr, amount);
 
 	    // Mark page as used and dirty
-	    pageTable[vpn].used = true;
-	    pageTable[vpn].dirty = true;
+	    pageWritten(vpn, entry);
 
 	    // Update counters
 	    totalWritten += amount;
@@ -256,6 +266,187 @@ public class UserProcess {
 	return totalWritten;
     }
 
+    /**
+     * Translate a range of this process's virtual memory into the runs of
+     * physical memory that hold it, so that the kernel can copy to or from
+     * main memory directly. Pages next to each other in physical memory are
+     * merged into one run. The pages stay where they are until
+     * <tt>unpinVirtualMemory()</tt> is called for the same range, even if
+     * other threads run in between.
+     *
+     * <p>
+     * The runs may cover less than the whole range: translation stops at the
+     * first page that is not part of the address space, or that can't be
+     * pinned because this process already holds as many pinned pages as it
+     * may. The caller should unpin what it got before asking for the rest.
+     * If even the first page can't be pinned for that reason, this waits
+     * until other threads of the process release theirs, so the runs are
+     * only empty if the range starts outside the address space.
+     *
+     * @param	vaddr	the first byte of virtual memory.
+     * @param	length	the number of bytes.
+     * @param	write	<tt>true</tt> if the kernel will write to the range,
+     *			in which case copy-on-write pages are copied first and
+     *			every page is marked dirty.
+     * @return	the physical address and length of each run, in pairs.
+     */
+    public int[] pinVirtualMemory(int vaddr, int length, boolean write) {
+	Lib.assertTrue(length >= 0);
+
+	int[] runs = new int[8];
+	int numRuns = 0;
+
+	if (vaddr < 0)
+	    return new int[0];
+
+	while (length > 0 && vaddr < numPages * pageSize) {
+	    int vpn = Processor.pageFromAddress(vaddr);
+	    int pageOffset = Processor.offsetFromAddress(vaddr);
+
+	    TranslationEntry entry = lookupPage(vpn);
+	    if (entry == null)
+		break;
+
+	    if (write && entry.readOnly) {
+		if (!breakCopyOnWrite(vpn))
+		    break;
+		continue;
+	    }
+
+	    int pinResult = pinPage(vpn, entry);
+	    if (pinResult == pinStale)
+		continue;
+	    if (pinResult == pinLimit) {
+		if (numRuns > 0)
+		    break;
+
+		// the page may have moved while we waited, so look it up again
+		waitToPin();
+		continue;
+	    }
+	    if (write)
+		pageWritten(vpn, entry);
+
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    int amount = Math.min(length, pageSize - pageOffset);
+
+	    if (numRuns > 0 && runs[2*numRuns-2] + runs[2*numRuns-1] == paddr) {
+		runs[2*numRuns-1] += amount;
+	    }
+	    else {
+		if (2*numRuns == runs.length)
+		    runs = Arrays.copyOf(runs, 2*runs.length);
+		runs[2*numRuns] = paddr;
+		runs[2*numRuns+1] = amount;
+		numRuns++;
+	    }
+
+	    vaddr += amount;
+	    length -= amount;
+	}
+
+	return Arrays.copyOf(runs, 2*numRuns);
+    }
+
+    /**
+     * Release the pages of a range pinned by <tt>pinVirtualMemory()</tt>.
+     *
+     * @param	vaddr	the first byte of virtual memory.
+     * @param	length	the number of bytes the runs covered.
+     */
+    public void unpinVirtualMemory(int vaddr, int length) {
+	if (length <= 0)
+	    return;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+	for (int vpn=firstVPN; vpn<=lastVPN; vpn++)
+	    unpinPage(vpn);
+    }
+
+    /**
+     * Keep a resident page in its frame until <tt>unpinPage()</tt> is
+     * called. Every page here stays in place for as long as the process
+     * runs, so there is nothing to do.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	entry	the entry <tt>lookupPage()</tt> just returned for it.
+     * @return	<tt>pinOK</tt> if the page was pinned, <tt>pinLimit</tt> if
+     *		this process may pin no more pages for now, or
+     *		<tt>pinStale</tt> if the page has left the frame named by
+     *		<i>entry</i> and must be looked up again.
+     */
+    protected int pinPage(int vpn, TranslationEntry entry) {
+	return pinOK;
+    }
+
+    /** <tt>pinPage()</tt> pinned the page. */
+    protected static final int pinOK = 0;
+    /** <tt>pinPage()</tt> failed because too many pages are pinned. */
+    protected static final int pinLimit = 1;
+    /** <tt>pinPage()</tt> failed because the page moved. */
+    protected static final int pinStale = 2;
+
+    /**
+     * Release a page pinned by <tt>pinPage()</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    protected void unpinPage(int vpn) {
+    }
+
+    /**
+     * Wait until <tt>pinPage()</tt> may succeed again after failing, because
+     * another thread of this process has released a pinned page. Called
+     * only by a thread holding no pins of its own.
+     */
+    protected void waitToPin() {
+    }
+
+    /**
+     * Return the page table entry that maps the specified virtual page, for
+     * use by the kernel when it accesses this process's memory. Subclasses
+     * that do not keep every page resident override this to bring the page
+     * in first.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the valid entry mapping <i>vpn</i>, or <tt>null</tt> if the
+     *		page is not part of this process's address space.
+     */
+    protected TranslationEntry lookupPage(int vpn) {
+	if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null ||
+	    !pageTable[vpn].valid)
+	    return null;
+
+	return pageTable[vpn];
+    }
+
+    /**
+     * Record that the kernel has written to a page on this process's behalf.
+     * The entry returned by <tt>lookupPage()</tt> here is the page table's
+     * own, so its bits are simply set; subclasses whose lookups return a
+     * copy override this to update their page tables.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	entry	the entry <tt>lookupPage()</tt> returned for it.
+     */
+    protected void pageWritten(int vpn, TranslationEntry entry) {
+	entry.used = true;
+	entry.dirty = true;
+    }
+
+    /**
+     * Test whether executables may leave holes between their sections. The
+     * flat page table used here covers every page below the stack, so it
+     * requires the sections to be contiguous; subclasses whose page tables
+     * only cover mapped pages override this.
+     *
+     * @return	<tt>true</tt> if sections need not be contiguous.
+     */
+    protected boolean allowsSparseSections() {
+	return false;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -284,16 +475,25 @@ public class UserProcess {
 	    return false;
 	}
 
-	// make sure the sections are contiguous and start at page 0
+	// make sure the sections are in order and don't overlap, and unless
+	// our page table can have holes, that they are contiguous from page 0
 	numPages = 0;
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
-	    if (section.getFirstVPN() != numPages) {
+	    if (section.getFirstVPN() < numPages ||
+		(section.getFirstVPN() != numPages && !allowsSparseSections())) {
 		coff.close();
 		Lib.debug(dbgProcess, "\tfragmented executable");
 		return false;
 	    }
-	    numPages += section.getLength();
+	    numPages = section.getFirstVPN() + section.getLength();
+	}
+
+	// keep every address below the stack and arguments positive
+	if (numPages > Processor.maxPages/2 - stackPages - 1) {
+	    coff.close();
+	    Lib.debug(dbgProcess, "\taddress space too large");
+	    return false;
 	}
 
 	// make sure the argv array will fit in one page
@@ -362,15 +562,33 @@ public class UserProcess {
 	// Don't add them again!
 
 	// Allocate frames from the kernel's free frames list
-	int[] allocatedFrames = UserKernel.allocateFrames(numPages);
-	if (allocatedFrames == null) {
+	boolean intStatus = Machine.interrupt().disable();
+	if (UserKernel.numFreeFrames() < numPages) {
+	    Machine.interrupt().restore(intStatus);
 	    coff.close();
 	    Lib.debug(dbgProcess, "\tunable to allocate " + numPages + " frames");
 	    return false;
 	}
 
+	// Pages that start out as zeros (bss, stack and arguments) take frames
+	// that are already cleared; the rest are filled from the executable
+	int[] allocatedFrames = new int[numPages];
+	int pageIndex = 0;
+	for (int s = 0; s < coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    for (int i = 0; i < section.getLength(); i++) {
+		allocatedFrames[pageIndex++] = section.isInitialzed() ?
+		    UserKernel.allocateFrames(1)[0] :
+		    UserKernel.allocateZeroedFrame();
+	    }
+	}
+	while (pageIndex < numPages)
+	    allocatedFrames[pageIndex++] = UserKernel.allocateZeroedFrame();
+	Machine.interrupt().restore(intStatus);
+
 	// Create the page table
 	pageTable = new TranslationEntry[numPages];
+	copyOnWrite = new boolean[numPages];
 
 	// print allocated frames
 	System.out.println("Process allocated " + numPages + " pages:");
@@ -379,7 +597,7 @@ public class UserProcess {
 	}
 
 	// Load sections and create page table entries
-	int pageIndex = 0;
+	pageIndex = 0;
 
 	// First, load all the code/data sections
 	int sectionPages = 0;
@@ -399,7 +617,8 @@ public class UserProcess {
 		pageTable[vpn] = new TranslationEntry(vpn, ppn, true, readOnly, false, false);
 
 		// Load the page into the allocated frame
-		section.loadPage(i, ppn);
+		if (section.isInitialzed())
+		    section.loadPage(i, ppn);
 
 		pageIndex++;
 	    }
@@ -444,9 +663,83 @@ public class UserProcess {
 	    }
 	    // Destroy the page table
 	    pageTable = null;
+	    copyOnWrite = null;
 	}
     }    
 
+    /**
+     * Make this process's address space a copy of <i>parent</i>'s without
+     * copying any memory. Every frame is shared with the parent, and pages
+     * that were writable become read-only copy-on-write pages in both page
+     * tables, so the cost is proportional to the page table rather than to
+     * resident memory.
+     *
+     * @param	parent	the process being forked.
+     * @return	<tt>true</tt> if the address space was successfully shared.
+     */
+    protected boolean forkAddressSpace(UserProcess parent) {
+	numPages = parent.numPages;
+	pageTable = new TranslationEntry[parent.pageTable.length];
+	copyOnWrite = new boolean[parent.pageTable.length];
+
+	for (int vpn=0; vpn<parent.pageTable.length; vpn++) {
+	    TranslationEntry entry = parent.pageTable[vpn];
+	    if (entry == null || !entry.valid)
+		continue;
+
+	    // writable pages are shared read-only until someone writes them
+	    if (!entry.readOnly || parent.copyOnWrite[vpn]) {
+		entry.readOnly = true;
+		parent.copyOnWrite[vpn] = true;
+		copyOnWrite[vpn] = true;
+	    }
+
+	    UserKernel.shareFrame(entry.ppn);
+	    pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true,
+						  entry.readOnly, false, false);
+	}
+
+	return true;
+    }
+
+    /**
+     * Give a copy-on-write page a private frame so that it can be written.
+     * If no other process still shares the frame, the page is simply made
+     * writable again; otherwise a new frame is allocated and the contents of
+     * the shared frame are copied into it.
+     *
+     * @param	vpn	the copy-on-write virtual page.
+     * @return	<tt>true</tt> if the page is now writable or the access
+     *		should be retried, or <tt>false</tt> if it was not a
+     *		copy-on-write page or no frame was available.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	if (copyOnWrite == null || vpn < 0 || vpn >= copyOnWrite.length ||
+	    !copyOnWrite[vpn])
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+
+	if (UserKernel.frameRefCount(entry.ppn) > 1) {
+	    int[] frames = UserKernel.allocateFrames(1);
+	    if (frames == null) {
+		Lib.debug(dbgProcess, "\tno frame to break copy-on-write");
+		return false;
+	    }
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, entry.ppn*pageSize,
+			     memory, frames[0]*pageSize, pageSize);
+
+	    UserKernel.releaseFrame(entry.ppn);
+	    entry.ppn = frames[0];
+	}
+
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+	return true;
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
@@ -457,8 +750,16 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked child picks up exactly where its parent left off
+	if (forkRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    forkRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
-	for (int i=0; i<processor.numUserRegisters; i++)
+	for (int i=0; i<Processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
 
 	// initialize PC and SP according
@@ -474,6 +775,8 @@ public class UserProcess {
      * Handle the halt() system call.
      */
     private int handleHalt() {
+	// halt() doesn't go through terminate(), so write back cached data now
+	ThreadedKernel.syncFileSystem();
 
 	Machine.halt();
 
@@ -481,57 +784,479 @@ public class UserProcess {
 	return 0;
     }
 
+    /**
+     * Handle the exec() system call. The new process is a child of this one,
+     * which can wait for it with <tt>join()</tt>.
+     *
+     * @param	nameAddr	the address of the executable's name.
+     * @param	argc		the number of arguments.
+     * @param	argvAddr	the address of the array of argument pointers.
+     * @return	the child's process ID, or -1 on error.
+     */
+    private int handleExec(int nameAddr, int argc, int argvAddr) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null || argc < 0 || argc > maxArgs) {
+	    Lib.debug(dbgProcess, "\tbad executable name or arguments");
+	    return -1;
+	}
+
+	String[] args = new String[argc];
+	byte[] pointer = new byte[4];
+	for (int i=0; i<argc; i++) {
+	    if (readVirtualMemory(argvAddr + i*4, pointer) != pointer.length)
+		return -1;
+
+	    args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0),
+					      maxNameLength);
+	    if (args[i] == null) {
+		Lib.debug(dbgProcess, "\tbad argument " + i);
+		return -1;
+	    }
+	}
+
+	UserProcess child = newUserProcess();
+	if (!child.execute(name, args)) {
+	    Lib.debug(dbgProcess, "\tunable to execute " + name);
+	    child.discard();
+	    return -1;
+	}
+
+	children.put(child.pid, child);
+	return child.pid;
+    }
+
+    /**
+     * Handle the join() system call, waiting for a child started by
+     * <tt>exec()</tt> or <tt>fork()</tt> to exit. A child can only be joined
+     * once.
+     *
+     * @param	processID	the child's process ID.
+     * @param	statusAddr	where to store the child's exit status, or 0.
+     * @return	1 if the child called <tt>exit()</tt>, 0 if it was killed by
+     *		an exception, or -1 if it is not a child of this process.
+     */
+    private int handleJoin(int processID, int statusAddr) {
+	UserProcess child = children.remove(processID);
+	if (child == null) {
+	    Lib.debug(dbgProcess, "\tno child " + processID + " to join");
+	    return -1;
+	}
+
+	child.exited.P();
+
+	if (!child.exitedNormally)
+	    return 0;
+
+	if (statusAddr != 0) {
+	    byte[] status = Lib.bytesFromInt(child.exitStatus);
+	    if (writeVirtualMemory(statusAddr, status) != status.length)
+		return -1;
+	}
+
+	return 1;
+    }
+
     /**
      * Handle the exit() system call.
      */
     private int handleExit(int status) {
+	exit(status, true);
+
+	// This should never be reached
+	return 0;
+    }
+
+    /**
+     * Release everything this process holds, wake a parent waiting in
+     * <tt>join()</tt>, and finish the current thread. Halts the machine if
+     * this was the last process.
+     *
+     * @param	status	the exit status.
+     * @param	normal	<tt>false</tt> if the process is being killed.
+     */
+    private void exit(int status, boolean normal) {
+	// operations still running use our memory and files
+	asyncIO.drain();
+
+	for (int fd=0; fd<maxOpenFiles; fd++) {
+	    if (fileTable[fd] != null)
+		handleClose(fd);
+	}
+
 	// Unload sections to free all allocated frames
 	unloadSections();
 
+	exitStatus = status;
+	exitedNormally = normal;
+	exited.V();
+
 	// If this is the last process, halt the machine
-	// For now, we'll just halt the machine after any exit
-	Machine.halt();
+	if (--numLiveProcesses == 0)
+	    Kernel.kernel.terminate();
 
-	// This should never be reached
+	KThread.finish();
+    }
+
+    /**
+     * Release what the constructor gave a process that never got to run: its
+     * console files and its asynchronous I/O.
+     */
+    private void discard() {
+	asyncIO.drain();
+
+	for (int fd=0; fd<maxOpenFiles; fd++) {
+	    if (fileTable[fd] != null)
+		handleClose(fd);
+	}
+    }
+
+    /**
+     * Handle the fork() system call. The child shares every frame with this
+     * process and starts running just after the syscall, where it sees a
+     * return value of 0.
+     *
+     * @return	the child's process ID, or -1 if the fork failed.
+     */
+    private int handleFork() {
+	// reads in progress write straight into frames the child would share,
+	// so let them land first, or the child would see data from after the
+	// fork
+	asyncIO.waitForRunning();
+
+	UserProcess child = newUserProcess();
+	if (!child.forkAddressSpace(this)) {
+	    child.discard();
+	    return -1;
+	}
+
+	Processor processor = Machine.processor();
+
+	int[] registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    registers[i] = processor.readRegister(i);
+
+	// the child resumes after the syscall with a return value of 0
+	registers[Processor.regV0] = 0;
+	registers[Processor.regPC] = registers[Processor.regNextPC];
+	registers[Processor.regNextPC] += 4;
+	child.forkRegisters = registers;
+
+	// the child shares our open files, and their positions
+	for (int fd=0; fd<maxOpenFiles; fd++) {
+	    if (child.fileTable[fd] != null)
+		child.fileTable[fd].file.close();
+	    child.fileTable[fd] = fileTable[fd];
+	    if (fileTable[fd] != null)
+		fileTable[fd].refCount++;
+	}
+
+	children.put(child.pid, child);
+	numLiveProcesses++;
+	new UThread(child).setName("fork of " + pid).fork();
+
+	return child.pid;
+    }
+
+    /**
+     * Handle the ringSetup() system call, replacing any ring set up before.
+     *
+     * @param	ringAddr	the address of the ring.
+     * @param	entries		the number of entries in each of its queues.
+     * @return	0 on success, or -1 on error.
+     */
+    private int handleRingSetup(int ringAddr, int entries) {
+	SyscallRing newRing = SyscallRing.attach(this, ringAddr, entries);
+	if (newRing == null) {
+	    Lib.debug(dbgProcess, "bad syscall ring");
+	    return -1;
+	}
+
+	ring = newRing;
 	return 0;
     }
 
+    /**
+     * Handle the ringEnter() system call.
+     *
+     * @param	toSubmit	the most queued syscalls to carry out.
+     * @return	the number carried out, or -1 on error.
+     */
+    private int handleRingEnter(int toSubmit) {
+	if (ring == null) {
+	    Lib.debug(dbgProcess, "no syscall ring");
+	    return -1;
+	}
+
+	return ring.enter(toSubmit);
+    }
+
     /**
      * See the full Javadocs in syscall.h.
-     * This version of handleWrite only handles printf!
+     * Writes to any open file, copying straight from the process's memory.
      */
     private int handleWrite(int fileDescriptor, int bufferAddr, int count){
-	OpenFile file = UserKernel.console.openForWriting();
+	OpenFile file = getFile(fileDescriptor);
+	if (file == null) {
+	    Lib.debug(dbgProcess, "bad file descriptor " + fileDescriptor);
+	    return -1;
+	}
 	if (!(bufferAddr >= 0 && count >= 0)) {
 	    Lib.debug(dbgProcess, "bufferAddr and count should bigger then zero");
 	    return -1;
 	}
-	byte[] buf = new byte[count];
-	int length = readVirtualMemory(bufferAddr, buf, 0, count);
-	length = file.write(buf, 0, length);
-	return length;
+	return transferVirtualMemory(file, bufferAddr, count, false);
     }
 
     /**
      * See the full Javadocs in syscall.h.
-     * This version only handles reading from the console, not from any files!
+     * Reads from any open file, copying straight into the process's memory.
      */
     private int handleRead(int fileDescriptor, int buffer, int count) {
-	OpenFile file = UserKernel.console.openForReading();
+	OpenFile file = getFile(fileDescriptor);
+	if (file == null) {
+	    Lib.debug(dbgProcess, "bad file descriptor " + fileDescriptor);
+	    return -1;
+	}
 	if (!(buffer >= 0 && count >= 0)) {
 	    Lib.debug(dbgProcess, "buffer and count should bigger then zero");
 	    return -1;
 	}
-	byte[] buf = new byte[count];
-	int length = file.read(buf, 0, count);
+	int length = transferVirtualMemory(file, buffer, count, true);
 	if (length == -1) {
 	    Lib.debug(dbgProcess, "Fail to read from file");
 	    return -1;
 	}
-	length = writeVirtualMemory(buffer, buf, 0, length);
 	return length;
     }
 
+    /**
+     * Handle the creat() and open() system calls.
+     *
+     * @param	nameAddr	the address of the file's name.
+     * @param	create		<tt>true</tt> to create the file if it does not
+     *				exist.
+     * @return	the new file descriptor, or -1 on error.
+     */
+    private int handleOpen(int nameAddr, boolean create) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null) {
+	    Lib.debug(dbgProcess, "\tbad file name");
+	    return -1;
+	}
+
+	int fd = 0;
+	while (fd < maxOpenFiles && fileTable[fd] != null)
+	    fd++;
+	if (fd == maxOpenFiles) {
+	    Lib.debug(dbgProcess, "\ttoo many open files");
+	    return -1;
+	}
+
+	// the file system only creates files when truncating, so look for an
+	// existing file first
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null && create)
+	    file = ThreadedKernel.fileSystem.open(name, true);
+	if (file == null) {
+	    Lib.debug(dbgProcess, "\tunable to open " + name);
+	    return -1;
+	}
+
+	fileTable[fd] = new FileRef(file);
+	return fd;
+    }
+
+    /**
+     * Handle the close() system call. The file itself is closed once no
+     * process that shares it by fork still has it open.
+     */
+    private int handleClose(int fileDescriptor) {
+	if (getFile(fileDescriptor) == null)
+	    return -1;
+
+	FileRef ref = fileTable[fileDescriptor];
+	fileTable[fileDescriptor] = null;
+
+	releaseFile(ref);
+	return 0;
+    }
+
+    /**
+     * Drop a reference to an open file, closing it if it was the last.
+     */
+    private void releaseFile(FileRef ref) {
+	if (--ref.refCount == 0)
+	    ref.file.close();
+    }
+
+    /**
+     * Handle the sync() system call.
+     */
+    private int handleSync() {
+	ThreadedKernel.syncFileSystem();
+	return 0;
+    }
+
+    /**
+     * Handle the fsync() system call. Streams have nothing buffered in the
+     * kernel, so there is nothing to do for them.
+     */
+    private int handleFsync(int fileDescriptor) {
+	OpenFile file = getFile(fileDescriptor);
+	if (file == null)
+	    return -1;
+
+	if (ThreadedKernel.bufferCache != null)
+	    ThreadedKernel.bufferCache.sync(file);
+	else if (file.getFileSystem() instanceof DurableFileSystem)
+	    ((DurableFileSystem) file.getFileSystem()).sync();
+	return 0;
+    }
+
+    /**
+     * Handle the aioRead() and aioWrite() system calls. The transfer runs on
+     * a worker thread, which holds its own reference to the open file so
+     * that closing the descriptor does not close the file under it.
+     *
+     * @param	fileDescriptor	the file to read or write.
+     * @param	vaddr		the first byte of the buffer.
+     * @param	count		the number of bytes to move.
+     * @param	toMemory	<tt>true</tt> to read, <tt>false</tt> to write.
+     * @return	the request ID, or -1 on error.
+     */
+    private int handleAsyncIO(int fileDescriptor, final int vaddr,
+			      final int count, final boolean toMemory) {
+	if (getFile(fileDescriptor) == null) {
+	    Lib.debug(dbgProcess, "bad file descriptor " + fileDescriptor);
+	    return -1;
+	}
+	if (vaddr < 0 || count < 0)
+	    return -1;
+
+	final FileRef ref = fileTable[fileDescriptor];
+	ref.refCount++;
+
+	int request = asyncIO.start(new AsyncIO.Operation() {
+		public int perform() {
+		    int result = transferVirtualMemory(ref.file, vaddr, count,
+						       toMemory);
+		    releaseFile(ref);
+		    return result;
+		}
+	    });
+	if (request == -1)
+	    releaseFile(ref);
+
+	return request;
+    }
+
+    /**
+     * Handle the aioWait() system call.
+     *
+     * @param	requestAddr	where to store the completed request's ID, or
+     *				-1 if there is none.
+     * @param	block		non-zero to wait for a request in progress.
+     * @return	the completed request's result, or -1.
+     */
+    private int handleAsyncWait(int requestAddr, int block) {
+	// make sure the ID can be stored before taking a completion
+	byte[] buf = new byte[4];
+	Lib.bytesFromInt(buf, 0, -1);
+	if (writeVirtualMemory(requestAddr, buf) != buf.length)
+	    return -1;
+
+	int[] completion = asyncIO.waitForCompletion(block != 0);
+	if (completion == null)
+	    return -1;
+
+	Lib.bytesFromInt(buf, 0, completion[0]);
+	writeVirtualMemory(requestAddr, buf);
+	return completion[1];
+    }
+
+    /**
+     * Handle the unlink() system call. What happens to processes that still
+     * have the file open is up to the file system.
+     */
+    private int handleUnlink(int nameAddr) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null)
+	    return -1;
+
+	return ThreadedKernel.fileSystem.remove(name) ? 0 : -1;
+    }
+
+    /**
+     * Return the open file a file descriptor refers to, or <tt>null</tt> if
+     * it is not valid.
+     */
+    private OpenFile getFile(int fileDescriptor) {
+	if (fileDescriptor < 0 || fileDescriptor >= maxOpenFiles ||
+	    fileTable[fileDescriptor] == null)
+	    return null;
+
+	return fileTable[fileDescriptor].file;
+    }
+
+    /**
+     * Move data between a file and this process's virtual memory, reading or
+     * writing the file straight into or out of main memory, one batch of
+     * pinned pages at a time.
+     *
+     * @param	file	the file to use.
+     * @param	vaddr	the first byte of virtual memory.
+     * @param	count	the number of bytes to move.
+     * @param	toMemory	<tt>true</tt> to read from the file into memory,
+     *				<tt>false</tt> to write memory to the file.
+     * @return	the number of bytes moved, or -1 if the file failed or the
+     *		range started outside the address space before anything was
+     *		moved.
+     */
+    private int transferVirtualMemory(OpenFile file, int vaddr, int count,
+				      boolean toMemory) {
+	byte[] memory = Machine.processor().getMemory();
+	int total = 0;
+
+	while (total < count) {
+	    int[] runs = pinVirtualMemory(vaddr + total, count - total,
+					  toMemory);
+	    if (runs.length == 0) {
+		if (total == 0)
+		    return -1;
+		break;
+	    }
+
+	    int pinned = 0;
+	    for (int i=1; i<runs.length; i+=2)
+		pinned += runs[i];
+
+	    // stop at the first run the file can't fully satisfy
+	    int moved = 0, amount = 0;
+	    for (int i=0; i<runs.length; i+=2) {
+		amount = toMemory ?
+		    file.read(memory, runs[i], runs[i+1]) :
+		    file.write(memory, runs[i], runs[i+1]);
+		if (amount < runs[i+1]) {
+		    if (amount > 0)
+			moved += amount;
+		    break;
+		}
+		moved += amount;
+	    }
+
+	    unpinVirtualMemory(vaddr + total, pinned);
+
+	    if (amount == -1 && total + moved == 0)
+		return -1;
+
+	    total += moved;
+	    if (moved < pinned)
+		break;
+	}
+
+	return total;
+    }
+
 
     private static final int
         syscallHalt = 0,
@@ -543,11 +1268,21 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFork = 13,
+	syscallRingSetup = 14,
+	syscallRingEnter = 15,
+	syscallAsyncRead = 16,
+	syscallAsyncWrite = 17,
+	syscallAsyncWait = 18,
+	syscallSync = 19,
+	syscallFsync = 20;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
-     * <i>syscall</i> argument identifies which syscall the user executed:
+     * <i>syscall</i> argument identifies which syscall the user executed,
+     * and picks its handler from the table built by
+     * <tt>registerSyscall()</tt>. The syscalls handled here are:
      *
      * <table>
      * <tr><td>syscall#</td><td>syscall prototype</td></tr>
@@ -564,6 +1299,18 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  ringSetup(void *ring, int entries);
+     *								</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  ringEnter(int toSubmit);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  aioRead(int fd, char *buffer, int size);
+     *								</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  aioWrite(int fd, char *buffer, int size);
+     *								</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  aioWait(int *request, int block);
+     *								</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  sync();</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  fsync(int fd);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -574,24 +1321,159 @@ public class UserProcess {
      * @return	the value to be returned to the user.
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
-	switch (syscall) {
-	case syscallHalt:
-	    return handleHalt();
+	SyscallHandler handler = getSyscallHandler(syscall);
+	if (handler == null) {
+	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
+	    Lib.assertNotReached("Unknown system call!");
+	}
 
-	case syscallExit:
-	    return handleExit(a0);
+	return handler.call(this, a0, a1, a2, a3);
+    }
 
-	case syscallRead:
-	    return handleRead(a0, a1, a2);
+    /**
+     * Return the handler registered for a syscall number, or <tt>null</tt>.
+     */
+    static SyscallHandler getSyscallHandler(int syscall) {
+	if (syscall < 0 || syscall >= syscallTable.length)
+	    return null;
 
-	case syscallWrite:
-	    return handleWrite(a0, a1, a2);
+	return syscallTable[syscall];
+    }
 
-	default:
-	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-	    Lib.assertNotReached("Unknown system call!");
-	}
-	return 0;
+    /**
+     * Add a syscall to the table <tt>handleSyscall()</tt> dispatches through,
+     * replacing any handler already registered for the same number.
+     * Subclasses register their own syscalls from a static initializer.
+     *
+     * @param	syscall	the syscall number, below <tt>Stats.MaxSyscalls</tt>.
+     * @param	handler	the handler for the syscall.
+     */
+    protected static void registerSyscall(int syscall,
+					  SyscallHandler handler) {
+	Lib.assertTrue(syscall >= 0 && syscall < Stats.MaxSyscalls);
+
+	handler.number = syscall;
+	Machine.stats().syscallNames[syscall] = handler.getName();
+
+	if (syscallTable == null)
+	    syscallTable = new SyscallHandler[0];
+	if (syscall >= syscallTable.length)
+	    syscallTable = Arrays.copyOf(syscallTable, syscall+1);
+
+	syscallTable[syscall] = handler;
+    }
+
+    static {
+	registerSyscall(syscallHalt, new SyscallHandler("halt", false) {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleHalt();
+		}
+	    });
+	registerSyscall(syscallExit, new SyscallHandler("exit", false) {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleExit(a0);
+		}
+	    });
+	registerSyscall(syscallExec, new SyscallHandler("exec", false) {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleExec(a0, a1, a2);
+		}
+	    });
+	registerSyscall(syscallJoin, new SyscallHandler("join", false) {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleJoin(a0, a1);
+		}
+	    });
+	registerSyscall(syscallCreate, new SyscallHandler("creat") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleOpen(a0, true);
+		}
+	    });
+	registerSyscall(syscallOpen, new SyscallHandler("open") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleOpen(a0, false);
+		}
+	    });
+	registerSyscall(syscallRead, new SyscallHandler("read") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleRead(a0, a1, a2);
+		}
+	    });
+	registerSyscall(syscallWrite, new SyscallHandler("write") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleWrite(a0, a1, a2);
+		}
+	    });
+	registerSyscall(syscallClose, new SyscallHandler("close") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleClose(a0);
+		}
+	    });
+	registerSyscall(syscallUnlink, new SyscallHandler("unlink") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleUnlink(a0);
+		}
+	    });
+	registerSyscall(syscallFork, new SyscallHandler("fork", false) {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleFork();
+		}
+	    });
+	registerSyscall(syscallRingSetup,
+			new SyscallHandler("ringSetup", false) {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleRingSetup(a0, a1);
+		}
+	    });
+	registerSyscall(syscallRingEnter,
+			new SyscallHandler("ringEnter", false) {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleRingEnter(a0);
+		}
+	    });
+	registerSyscall(syscallAsyncRead, new SyscallHandler("aioRead") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleAsyncIO(a0, a1, a2, true);
+		}
+	    });
+	registerSyscall(syscallAsyncWrite, new SyscallHandler("aioWrite") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleAsyncIO(a0, a1, a2, false);
+		}
+	    });
+	registerSyscall(syscallAsyncWait, new SyscallHandler("aioWait") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleAsyncWait(a0, a1);
+		}
+	    });
+	registerSyscall(syscallSync, new SyscallHandler("sync") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleSync();
+		}
+	    });
+	registerSyscall(syscallFsync, new SyscallHandler("fsync") {
+		public int handle(UserProcess process, int a0, int a1, int a2,
+				  int a3) {
+		    return process.handleFsync(a0);
+		}
+	    });
     }
 
     /**
@@ -616,20 +1498,36 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
+
+	case Processor.exceptionReadOnly:
+	    if (!breakCopyOnWrite(Processor.pageFromAddress(
+				processor.readRegister(Processor.regBadVAddr))))
+		killForException(cause);
+	    break;
 				       
 	default:
-	    Lib.debug(dbgProcess, "Unexpected exception: " +
-		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    killForException(cause);
 	}
     }
 
+    /**
+     * Kill this process because of an exception it can't recover from,
+     * leaving the kernel and other processes running.
+     */
+    private void killForException(int cause) {
+	Lib.debug(dbgProcess, "Unexpected exception: " +
+		  Processor.exceptionNames[cause]);
+	exit(-1, false);
+    }
+
     /** The program being run by this process. */
     protected Coff coff;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
-    /** The number of contiguous pages occupied by the program. */
+    /** Pages shared read-only with a forked process until written. */
+    protected boolean[] copyOnWrite;
+    /** The number of pages up to the end of the argument page. */
     protected int numPages;
 
     /** The number of pages in the program's stack. */
@@ -637,6 +1535,50 @@ public class UserProcess {
     
     private int initialPC, initialSP;
     private int argc, argv;
+
+    /** This process's ID. */
+    protected int pid;
+    /** Registers a forked child starts with, or <tt>null</tt>. */
+    private int[] forkRegisters = null;
+
+    /** This process's open files, indexed by file descriptor. */
+    private FileRef[] fileTable = new FileRef[maxOpenFiles];
+    /** This process's syscall ring, or <tt>null</tt>. */
+    private SyscallRing ring = null;
+    /** This process's asynchronous reads and writes. */
+    private AsyncIO asyncIO;
+
+    /** Children not yet joined, by process ID. */
+    private HashMap<Integer, UserProcess> children =
+	new HashMap<Integer, UserProcess>();
+    /** Released once this process has exited. */
+    private Semaphore exited = new Semaphore(0);
+    private int exitStatus;
+    private boolean exitedNormally;
+
+    /**
+     * An open file and the number of file descriptors, in this process and
+     * any it forked, that refer to it.
+     */
+    private static class FileRef {
+	FileRef(OpenFile file) {
+	    this.file = file;
+	}
+
+	OpenFile file;
+	int refCount = 1;
+    }
+
+    /** The handler for each syscall number, or <tt>null</tt>. */
+    private static SyscallHandler[] syscallTable;
+
+    private static int nextPid = 0;
+    private static int numLiveProcesses = 0;
+
+    private static final int maxOpenFiles = 16;
+    private static final int maxNameLength = 256;
+    private static final int maxArgs = 16;
+    private static final int maxAsyncRequests = 8;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
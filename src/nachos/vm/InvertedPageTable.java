@@ -0,0 +1,255 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A hashed inverted page table: the kernel's map of which virtual pages are
+ * resident in which physical frames. There is one mapping for each resident
+ * page, found in expected constant time by hashing its process and virtual
+ * page number, so the space used grows with physical memory rather than with
+ * the size of each address space. A frame shared copy-on-write carries one
+ * mapping per process that shares it.
+ *
+ * <p>
+ * The table doubles as the core map used for page replacement: each frame
+ * lists the mappings that refer to it, and <tt>chooseVictim()</tt> runs the
+ * clock algorithm over the frames.
+ *
+ * <p>
+ * A page's translation and flags live in its process's
+ * <tt>RadixPageTable</tt>, which this table keeps up to date as pages are
+ * mapped and unmapped. A mapping only records which page it is, and reads
+ * and writes the packed entry there.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table covering the specified number of
+     * physical frames.
+     *
+     * @param	numFrames	the number of physical frames.
+     */
+    public InvertedPageTable(int numFrames) {
+	frames = new Mapping[numFrames];
+	pinned = new int[numFrames];
+
+	int numBuckets = 1;
+	while (numBuckets < numFrames)
+	    numBuckets <<= 1;
+	buckets = new Mapping[numBuckets];
+    }
+
+    /**
+     * Find the mapping for a resident virtual page.
+     *
+     * @param	process	the process owning the page.
+     * @param	vpn	the virtual page number.
+     * @return	the mapping, or <tt>null</tt> if the page is not resident.
+     */
+    public Mapping find(VMProcess process, int vpn) {
+	for (Mapping m = buckets[hash(process, vpn)]; m != null;
+	     m = m.nextInBucket) {
+	    if (m.process == process && m.vpn == vpn)
+		return m;
+	}
+
+	return null;
+    }
+
+    /**
+     * Record that page <i>vpn</i> of <i>process</i> is resident in frame
+     * <i>ppn</i>.
+     *
+     * @param	process	the process owning the page.
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the frame holding the page.
+     * @param	flags	the page's <tt>RadixPageTable.pteZZZ</tt> flags.
+     * @return	the new mapping.
+     */
+    public Mapping map(VMProcess process, int vpn, int ppn, int flags) {
+	Lib.assertTrue(!process.radixTable.isResident(vpn));
+
+	process.radixTable.setResident(vpn, ppn, flags);
+
+	Mapping m = new Mapping(process, vpn);
+
+	int bucket = hash(process, vpn);
+	m.nextInBucket = buckets[bucket];
+	buckets[bucket] = m;
+
+	m.nextInFrame = frames[ppn];
+	frames[ppn] = m;
+
+	return m;
+    }
+
+    /**
+     * Remove a mapping, so that its page is no longer resident for its
+     * process. The frame itself is not freed.
+     *
+     * @param	m	the mapping to remove.
+     */
+    public void unmap(Mapping m) {
+	int bucket = hash(m.process, m.vpn);
+	if (buckets[bucket] == m) {
+	    buckets[bucket] = m.nextInBucket;
+	}
+	else {
+	    Mapping prev = buckets[bucket];
+	    while (prev.nextInBucket != m)
+		prev = prev.nextInBucket;
+	    prev.nextInBucket = m.nextInBucket;
+	}
+
+	int ppn = m.getPPN();
+	m.process.radixTable.clearResident(m.vpn);
+
+	if (frames[ppn] == m) {
+	    frames[ppn] = m.nextInFrame;
+	}
+	else {
+	    Mapping prev = frames[ppn];
+	    while (prev.nextInFrame != m)
+		prev = prev.nextInFrame;
+	    prev.nextInFrame = m.nextInFrame;
+	}
+
+	m.nextInBucket = m.nextInFrame = null;
+    }
+
+    /**
+     * Return the first of the mappings that refer to a frame. The rest are
+     * reached through <tt>Mapping.nextInFrame</tt>.
+     *
+     * @param	ppn	the physical frame.
+     * @return	the first mapping, or <tt>null</tt> if nothing maps the frame.
+     */
+    public Mapping getMappings(int ppn) {
+	return frames[ppn];
+    }
+
+    /**
+     * Return the number of physical frames this table covers.
+     */
+    public int getNumFrames() {
+	return frames.length;
+    }
+
+    /**
+     * Keep a frame from being chosen for replacement. Pins nest, so a frame
+     * stays pinned until each <tt>pin()</tt> has been matched by an
+     * <tt>unpin()</tt>.
+     */
+    public void pin(int ppn) {
+	pinned[ppn]++;
+    }
+
+    /**
+     * Drop one pin on a frame, allowing it to be chosen for replacement once
+     * none are left.
+     */
+    public void unpin(int ppn) {
+	Lib.assertTrue(pinned[ppn] > 0);
+	pinned[ppn]--;
+    }
+
+    /**
+     * Test whether a frame is pinned.
+     */
+    public boolean isPinned(int ppn) {
+	return pinned[ppn] > 0;
+    }
+
+    /**
+     * Choose a mapped, unpinned frame to replace, using the clock algorithm:
+     * a frame any of whose mappings has been used since the hand last passed
+     * gets a second chance.
+     *
+     * @return	the frame to replace, or -1 if every mapped frame is pinned.
+     */
+    public int chooseVictim() {
+	for (int scanned=0; scanned<2*frames.length; scanned++) {
+	    int ppn = hand;
+	    hand = (hand+1) % frames.length;
+
+	    if (frames[ppn] == null || pinned[ppn] > 0)
+		continue;
+
+	    boolean used = false;
+	    for (Mapping m = frames[ppn]; m != null; m = m.nextInFrame) {
+		used |= m.hasFlag(RadixPageTable.pteUsed);
+		m.setFlag(RadixPageTable.pteUsed, false);
+	    }
+
+	    if (!used)
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    private int hash(VMProcess process, int vpn) {
+	int h = process.hashCode()*31 + vpn;
+	return (h ^ (h >>> 16)) & (buckets.length-1);
+    }
+
+    /**
+     * A resident virtual page of one process.
+     */
+    public static class Mapping {
+	Mapping(VMProcess process, int vpn) {
+	    this.process = process;
+	    this.vpn = vpn;
+	}
+
+	/**
+	 * Return the frame holding the page.
+	 */
+	public int getPPN() {
+	    return process.radixTable.getPPN(vpn);
+	}
+
+	/**
+	 * Return all of the page's <tt>RadixPageTable.pteZZZ</tt> flags.
+	 */
+	public int getFlags() {
+	    return process.radixTable.getFlags(vpn);
+	}
+
+	/**
+	 * Test one of the page's <tt>RadixPageTable.pteZZZ</tt> flags.
+	 */
+	public boolean hasFlag(int flag) {
+	    return process.radixTable.getFlag(vpn, flag);
+	}
+
+	/**
+	 * Set or clear one of the page's <tt>RadixPageTable.pteZZZ</tt>
+	 * flags.
+	 */
+	public void setFlag(int flag, boolean value) {
+	    process.radixTable.setFlag(vpn, flag, value);
+	}
+
+	/**
+	 * Return a copy of the page's translation.
+	 */
+	public TranslationEntry getTranslation() {
+	    return process.radixTable.getTranslation(vpn);
+	}
+
+	/** The process owning the page. */
+	public final VMProcess process;
+	/** The virtual page number. */
+	public final int vpn;
+	/** The next mapping of the same frame. */
+	public Mapping nextInFrame;
+
+	private Mapping nextInBucket;
+    }
+
+    private Mapping[] buckets;
+    private Mapping[] frames;
+    /** Number of outstanding pins on each frame. */
+    private int[] pinned;
+    private int hand = 0;
+}
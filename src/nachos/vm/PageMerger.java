@@ -0,0 +1,181 @@
+package nachos.vm;
+
+import java.util.HashMap;
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A background scanner that finds physical frames with identical contents
+ * and merges them into one shared frame. Writable pages in the shared frame
+ * become copy-on-write, so a process that later writes one gets its own copy
+ * again through the usual read-only exception.
+ *
+ * <p>
+ * The scanner visits a few frames at a time, hashing each one. A frame is
+ * only merged once its hash is unchanged since the previous visit, so pages
+ * that are still being written are left alone.
+ */
+public class PageMerger implements Runnable {
+    /**
+     * Allocate a new page merger.
+     *
+     * @param	framesPerScan	the number of frames to visit per scan.
+     * @param	scanInterval	the number of ticks to sleep between scans.
+     */
+    public PageMerger(int framesPerScan, long scanInterval) {
+	this.framesPerScan = framesPerScan;
+	this.scanInterval = scanInterval;
+
+	int numFrames = VMKernel.ipt.getNumFrames();
+	hashes = new long[numFrames];
+	hashed = new boolean[numFrames];
+    }
+
+    /**
+     * Scan frames forever, sleeping between scans.
+     */
+    public void run() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(scanInterval);
+
+	    for (int i=0; i<framesPerScan; i++) {
+		VMKernel.vmLock.acquire();
+		scanFrame(cursor);
+		VMKernel.vmLock.release();
+
+		cursor = (cursor+1) % hashes.length;
+	    }
+	}
+    }
+
+    /**
+     * Hash one frame, and merge it into an earlier frame with the same
+     * contents if it has not changed since it was last hashed.
+     */
+    private void scanFrame(int ppn) {
+	if (!isMergeable(ppn)) {
+	    forget(ppn);
+	    return;
+	}
+
+	Machine.stats().numFramesScanned++;
+
+	long hash = hashFrame(ppn);
+	if (!hashed[ppn] || hashes[ppn] != hash) {
+	    forget(ppn);
+	    hashes[ppn] = hash;
+	    hashed[ppn] = true;
+	    return;
+	}
+
+	Integer other = stableFrames.get(hash);
+	if (other == null || other == ppn || !isMergeable(other) ||
+	    !sameContents(other, ppn)) {
+	    stableFrames.put(hash, ppn);
+	    return;
+	}
+
+	merge(ppn, other);
+    }
+
+    /**
+     * Test whether a frame holds resident pages that may be merged.
+     */
+    private boolean isMergeable(int ppn) {
+	return VMKernel.ipt.getMappings(ppn) != null &&
+	    !VMKernel.ipt.isPinned(ppn);
+    }
+
+    /**
+     * Drop what we know about a frame whose contents have changed.
+     */
+    private void forget(int ppn) {
+	if (hashed[ppn]) {
+	    Integer stable = stableFrames.get(hashes[ppn]);
+	    if (stable != null && stable == ppn)
+		stableFrames.remove(hashes[ppn]);
+	}
+
+	hashed[ppn] = false;
+    }
+
+    /**
+     * Move every mapping of frame <i>from</i> to frame <i>to</i>, which holds
+     * the same contents, and free <i>from</i>. Every writable page in the
+     * shared frame becomes copy-on-write.
+     */
+    private void merge(int from, int to) {
+	InvertedPageTable ipt = VMKernel.ipt;
+
+	for (InvertedPageTable.Mapping m = ipt.getMappings(to); m != null;
+	     m = m.nextInFrame) {
+	    if (!m.hasFlag(RadixPageTable.pteReadOnly)) {
+		m.setFlag(RadixPageTable.pteReadOnly, true);
+		m.setFlag(RadixPageTable.pteCopyOnWrite, true);
+	    }
+	}
+
+	InvertedPageTable.Mapping m;
+	while ((m = ipt.getMappings(from)) != null) {
+	    int flags = m.getFlags();
+	    if ((flags & RadixPageTable.pteReadOnly) == 0)
+		flags |= RadixPageTable.pteReadOnly|RadixPageTable.pteCopyOnWrite;
+
+	    ipt.unmap(m);
+	    ipt.map(m.process, m.vpn, to, flags);
+
+	    UserKernel.shareFrame(to);
+	    UserKernel.releaseFrame(from);
+	    Machine.stats().numPagesMerged++;
+	}
+
+	// processes notice the new translations when they next run, since
+	// their saved TLB entries no longer match the inverted page table
+	forget(from);
+
+	Lib.debug(dbgVM, "\tmerged frame " + from + " into " + to);
+    }
+
+    /**
+     * Return a 64-bit FNV-1a hash of a frame's contents.
+     */
+    private static long hashFrame(int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	long hash = 0xcbf29ce484222325L;
+	for (int i=ppn*pageSize; i<(ppn+1)*pageSize; i++) {
+	    hash ^= memory[i] & 0xFF;
+	    hash *= 0x100000001b3L;
+	}
+
+	return hash;
+    }
+
+    /**
+     * Test whether two frames hold the same bytes.
+     */
+    private static boolean sameContents(int ppn1, int ppn2) {
+	byte[] memory = Machine.processor().getMemory();
+
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[ppn1*pageSize + i] != memory[ppn2*pageSize + i])
+		return false;
+	}
+
+	return true;
+    }
+
+    private int framesPerScan;
+    private long scanInterval;
+    private int cursor = 0;
+
+    /** Each frame's hash as of the last time it was scanned. */
+    private long[] hashes;
+    private boolean[] hashed;
+    /** A frame that held each hash unchanged across two scans. */
+    private HashMap<Long, Integer> stableFrames = new HashMap<Long, Integer>();
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
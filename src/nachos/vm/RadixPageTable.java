@@ -0,0 +1,252 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A two-level radix page table covering a 32-bit virtual address space. A
+ * virtual page number is split into a directory index and a leaf index, like
+ * the page directory and page tables of an x86: the top 12 bits pick a leaf,
+ * and the low 10 bits pick the page's entry within it.
+ *
+ * <p>
+ * Leaves are only allocated for the parts of the address space that are in
+ * use, and are freed again once they hold nothing, so the memory the table
+ * takes grows with the number of pages mapped rather than with the span of
+ * the address space.
+ *
+ * <p>
+ * Each page's entry is packed into a single <tt>long</tt>, so a leaf is one
+ * flat array and a walk touches no other objects. The low bits hold the
+ * frame number and the <tt>pteZZZ</tt> flags of a resident page, and the
+ * high 32 bits hold the page's swap slot plus one, so that an entry of zero
+ * is a page that was never touched. The layout is the one
+ * <tt>Processor.setPackedPageTable()</tt> reads, so without a TLB the
+ * processor walks the table directly; with one, <tt>getTranslation()</tt>
+ * unpacks an entry into a <tt>TranslationEntry</tt> to load into it.
+ */
+public class RadixPageTable {
+    /**
+     * Allocate a new, empty page table.
+     */
+    public RadixPageTable() {
+    }
+
+    /**
+     * Return the packed entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the entry, or 0 if the page was never touched.
+     */
+    public long getEntry(int vpn) {
+	long[] leaf = directory[vpn >>> leafBits];
+	return (leaf == null) ? 0 : leaf[vpn & leafMask];
+    }
+
+    /**
+     * Replace the packed entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	pte	the new entry, or 0 to clear it.
+     */
+    public void setEntry(int vpn, long pte) {
+	Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+
+	int dir = vpn >>> leafBits;
+	long[] leaf = directory[dir];
+	if (leaf == null) {
+	    if (pte == 0)
+		return;
+
+	    // the extra element counts the leaf's non-zero entries
+	    leaf = directory[dir] = new long[leafSize+1];
+	    numLeaves++;
+	}
+
+	int index = vpn & leafMask;
+	if (leaf[index] == 0)
+	    leaf[leafSize]++;
+	if (pte == 0)
+	    leaf[leafSize]--;
+	leaf[index] = pte;
+
+	if (leaf[leafSize] == 0) {
+	    directory[dir] = null;
+	    numLeaves--;
+	}
+    }
+
+    /**
+     * Test whether a virtual page is resident.
+     */
+    public boolean isResident(int vpn) {
+	return (getEntry(vpn) & pteValid) != 0;
+    }
+
+    /**
+     * Return the frame holding a resident virtual page.
+     */
+    public int getPPN(int vpn) {
+	long pte = getEntry(vpn);
+	Lib.assertTrue((pte & pteValid) != 0);
+
+	return (int) (pte & ppnMask);
+    }
+
+    /**
+     * Make a virtual page resident in a frame, keeping its swap slot.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the frame holding the page.
+     * @param	flags	the page's <tt>pteZZZ</tt> flags.
+     */
+    public void setResident(int vpn, int ppn, int flags) {
+	Lib.assertTrue(ppn >= 0 && ppn <= ppnMask);
+
+	long pte = getEntry(vpn) & ~lowMask;
+	setEntry(vpn, pte | pteValid | (flags & flagMask) | ppn);
+    }
+
+    /**
+     * Mark a virtual page as no longer resident, keeping its swap slot.
+     */
+    public void clearResident(int vpn) {
+	setEntry(vpn, getEntry(vpn) & ~lowMask);
+    }
+
+    /**
+     * Return all of a page's <tt>pteZZZ</tt> flags.
+     */
+    public int getFlags(int vpn) {
+	return (int) getEntry(vpn) & flagMask;
+    }
+
+    /**
+     * Test one of a page's <tt>pteZZZ</tt> flags.
+     */
+    public boolean getFlag(int vpn, int flag) {
+	return (getEntry(vpn) & flag) != 0;
+    }
+
+    /**
+     * Set or clear one of a resident page's <tt>pteZZZ</tt> flags.
+     */
+    public void setFlag(int vpn, int flag, boolean value) {
+	long pte = getEntry(vpn);
+	Lib.assertTrue((pte & pteValid) != 0);
+
+	setEntry(vpn, value ? (pte | flag) : (pte & ~(long) flag));
+    }
+
+    /**
+     * Unpack the entry for a resident virtual page into a
+     * <tt>TranslationEntry</tt>, as the processor expects it. The result is
+     * a copy; changing it does not change the page table.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the translation, or <tt>null</tt> if the page is not
+     *		resident.
+     */
+    public TranslationEntry getTranslation(int vpn) {
+	long pte = getEntry(vpn);
+	if ((pte & pteValid) == 0)
+	    return null;
+
+	return new TranslationEntry(vpn, (int) (pte & ppnMask), true,
+				    (pte & pteReadOnly) != 0,
+				    (pte & pteUsed) != 0,
+				    (pte & pteDirty) != 0);
+    }
+
+    /**
+     * Return the swap slot holding a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the slot, or -1 if the page has never been paged out.
+     */
+    public int getSwapSlot(int vpn) {
+	return (int) (getEntry(vpn) >>> 32) - 1;
+    }
+
+    /**
+     * Set or clear the swap slot holding a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	slot	the slot, or -1 to clear it.
+     * @return	the slot previously recorded for the page, or -1.
+     */
+    public int setSwapSlot(int vpn, int slot) {
+	long pte = getEntry(vpn);
+	setEntry(vpn, (pte & lowMask) | ((long) (slot+1) << 32));
+
+	return (int) (pte >>> 32) - 1;
+    }
+
+    /**
+     * Find the first page at or after <i>vpn</i> that is resident or has a
+     * swap slot. Leaves that were never allocated are skipped whole, so
+     * walking every page this way costs time in proportion to the leaves in
+     * use.
+     *
+     * @param	vpn	the first virtual page to consider.
+     * @return	the page number, or -1 if there are no more.
+     */
+    public int nextPage(int vpn) {
+	while (vpn >= 0 && vpn < Processor.maxPages) {
+	    long[] leaf = directory[vpn >>> leafBits];
+	    if (leaf == null) {
+		vpn = ((vpn >>> leafBits) + 1) << leafBits;
+		continue;
+	    }
+
+	    if (leaf[vpn & leafMask] != 0)
+		return vpn;
+	    vpn++;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the page directory, for <tt>Processor.setPackedPageTable()</tt>.
+     * Leaves come and go as pages are mapped, but the directory itself never
+     * changes.
+     */
+    public long[][] getDirectory() {
+	return directory;
+    }
+
+    /**
+     * Return the number of leaves currently allocated.
+     */
+    public int getNumLeaves() {
+	return numLeaves;
+    }
+
+    /** The page is resident; the low bits hold its frame number. */
+    public static final int pteValid = Processor.packedValid;
+    /** The page may not be written. */
+    public static final int pteReadOnly = Processor.packedReadOnly;
+    /** The page has been referenced since the bit was last cleared. */
+    public static final int pteUsed = Processor.packedUsed;
+    /** The page has been written since it was last saved. */
+    public static final int pteDirty = Processor.packedDirty;
+    /** The frame is shared until the page is written. */
+    public static final int pteCopyOnWrite = 1 << 24;
+    /** Mapped by fault-around and not yet touched. */
+    public static final int ptePrefetched = 1 << 25;
+    /** Brought back by prepaging and not yet touched. */
+    public static final int ptePrepaged = 1 << 26;
+
+    private static final int ppnMask = Processor.packedPPNMask;
+    private static final int flagMask = pteReadOnly | pteUsed | pteDirty |
+	pteCopyOnWrite | ptePrefetched | ptePrepaged;
+    /** Everything but the swap slot. */
+    private static final long lowMask = 0xFFFFFFFFL;
+
+    private static final int leafBits = Processor.packedLeafBits;
+    private static final int leafSize = Processor.packedLeafSize;
+    private static final int leafMask = leafSize - 1;
+
+    private long[][] directory = new long[Processor.maxPages >>> leafBits][];
+    private int numLeaves = 0;
+}
@@ -0,0 +1,276 @@
+package nachos.vm;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A compressed in-memory tier in front of a <tt>SwapFile</tt>. Pages written
+ * to swap are compressed and kept in a bounded pool, and a fault on one of
+ * them is served from the pool without touching the file. When the pool is
+ * full, the least recently used pages are written back to the file.
+ *
+ * <p>
+ * Pages are compressed by run-length encoding their zero bytes, which is
+ * cheap and does well on the sparse data pages that make up most page-out
+ * traffic. A page that does not shrink goes straight to the file.
+ */
+public class SwapCache {
+    /**
+     * Create a swap cache in front of a new swap file.
+     *
+     * @param	name		the name of the swap file.
+     * @param	capacity	the most compressed bytes to keep in memory.
+     */
+    public SwapCache(String name, int capacity) {
+	file = new SwapFile(name);
+	this.capacity = capacity;
+    }
+
+    /**
+     * Allocate a free slot, with a reference count of one.
+     *
+     * @return	the slot number.
+     */
+    public int allocate() {
+	return file.allocate();
+    }
+
+    /**
+     * Add a reference to an allocated slot.
+     */
+    public void retain(int slot) {
+	file.retain(slot);
+    }
+
+    /**
+     * Drop a reference to a slot. A freed slot's page is discarded without
+     * being written back.
+     */
+    public void release(int slot) {
+	if (file.release(slot)) {
+	    byte[] data = pages.remove(slot);
+	    if (data != null)
+		size -= data.length;
+	}
+    }
+
+    /**
+     * Copy a physical frame into a slot, compressing it into the pool if it
+     * shrinks. Other threads may run if pages have to be written back.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the frame to copy from.
+     * @return	<tt>true</tt> if the page was saved.
+     */
+    public boolean write(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	byte[] old = pages.remove(slot);
+	if (old != null)
+	    size -= old.length;
+
+	byte[] data = compress(memory, ppn*pageSize);
+	if (data == null || data.length > capacity) {
+	    Machine.stats().numSwapCacheRejects++;
+	    return file.write(slot, memory, ppn*pageSize);
+	}
+
+	pages.put(slot, data);
+	size += data.length;
+	Machine.stats().numSwapCacheStores++;
+
+	return writeBack();
+    }
+
+    /**
+     * Copy a slot into a physical frame, from the pool if it is there.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the frame to copy into.
+     * @return	<tt>true</tt> if the page was read.
+     */
+    public boolean read(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	byte[] data = pages.get(slot);
+	if (data == null)
+	    return file.read(slot, memory, ppn*pageSize);
+
+	decompress(data, memory, ppn*pageSize);
+	Machine.stats().numSwapCacheHits++;
+	return true;
+    }
+
+    /**
+     * Copy a batch of slots into physical frames. Slots that are not in the
+     * pool are read from the file in order, with one read for each run of
+     * consecutive slots.
+     *
+     * @param	slots	the slots to read.
+     * @param	ppns	the frame to copy each slot into.
+     * @param	count	the number of slots to read.
+     * @return	<tt>true</tt> if every page was read.
+     */
+    public boolean read(final int[] slots, int[] ppns, int count) {
+	byte[] memory = Machine.processor().getMemory();
+
+	Integer[] order = new Integer[count];
+	for (int i=0; i<count; i++)
+	    order[i] = i;
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return slots[a] - slots[b];
+		}
+	    });
+
+	boolean success = true;
+	for (int i=0; i<count; ) {
+	    int first = slots[order[i]];
+
+	    if (pages.containsKey(first)) {
+		success &= read(first, ppns[order[i]]);
+		i++;
+		continue;
+	    }
+
+	    int run = 1;
+	    while (i+run < count && slots[order[i+run]] == first+run &&
+		   !pages.containsKey(first+run))
+		run++;
+
+	    byte[] data = new byte[run*pageSize];
+	    success &= file.read(first, run, data, 0);
+	    for (int j=0; j<run; j++) {
+		System.arraycopy(data, j*pageSize,
+				 memory, ppns[order[i+j]]*pageSize, pageSize);
+	    }
+
+	    i += run;
+	}
+
+	return success;
+    }
+
+    /**
+     * Discard the pool, then close and delete the swap file.
+     */
+    public void close() {
+	pages.clear();
+	size = 0;
+	file.close();
+    }
+
+    /**
+     * Write the least recently used pages to the file until the pool fits
+     * in its capacity.
+     *
+     * @return	<tt>true</tt> if every page written back was saved.
+     */
+    private boolean writeBack() {
+	boolean success = true;
+
+	while (size > capacity) {
+	    Iterator<Map.Entry<Integer, byte[]>> it =
+		pages.entrySet().iterator();
+	    Map.Entry<Integer, byte[]> eldest = it.next();
+	    it.remove();
+	    size -= eldest.getValue().length;
+
+	    decompress(eldest.getValue(), buffer, 0);
+	    success &= file.write(eldest.getKey(), buffer, 0);
+	    Machine.stats().numSwapCacheWriteBacks++;
+	}
+
+	return success;
+    }
+
+    /**
+     * Compress the page at <i>offset</i> in <i>src</i>. Each run starts with
+     * a header byte: 0-127 is followed by that many plus one literal bytes,
+     * and 128-255 stands for that many minus 127 zero bytes.
+     *
+     * @return	the compressed page, or <tt>null</tt> if it did not shrink.
+     */
+    private static byte[] compress(byte[] src, int offset) {
+	byte[] out = new byte[pageSize];
+	int length = 0;
+
+	int end = offset + pageSize;
+	for (int i=offset; i<end; ) {
+	    int run = 0;
+	    while (i+run < end && src[i+run] == 0 && run < maxRun)
+		run++;
+
+	    if (run >= 2) {
+		if (length+1 > out.length)
+		    return null;
+
+		out[length++] = (byte) (127 + run);
+		i += run;
+		continue;
+	    }
+
+	    // literal bytes, up to the next pair of zeros
+	    run = 1;
+	    while (i+run < end && run < maxRun &&
+		   !(src[i+run] == 0 && i+run+1 < end && src[i+run+1] == 0))
+		run++;
+
+	    if (length+1+run > out.length)
+		return null;
+
+	    out[length++] = (byte) (run - 1);
+	    System.arraycopy(src, i, out, length, run);
+	    length += run;
+	    i += run;
+	}
+
+	if (length >= pageSize)
+	    return null;
+
+	byte[] data = new byte[length];
+	System.arraycopy(out, 0, data, 0, length);
+	return data;
+    }
+
+    /**
+     * Expand a page compressed by <tt>compress()</tt> into <i>dst</i>.
+     */
+    private static void decompress(byte[] data, byte[] dst, int offset) {
+	int j = offset;
+	for (int i=0; i<data.length; ) {
+	    int header = data[i++] & 0xFF;
+
+	    if (header >= 128) {
+		int run = header - 127;
+		for (int k=0; k<run; k++)
+		    dst[j++] = 0;
+	    }
+	    else {
+		int run = header + 1;
+		System.arraycopy(data, i, dst, j, run);
+		i += run;
+		j += run;
+	    }
+	}
+
+	Lib.assertTrue(j == offset + pageSize);
+    }
+
+    private SwapFile file;
+    private int capacity;
+    /** Compressed bytes currently held in the pool. */
+    private int size = 0;
+    /** Compressed pages by slot, least recently used first. */
+    private LinkedHashMap<Integer, byte[]> pages =
+	new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+    private byte[] buffer = new byte[pageSize];
+
+    private static final int maxRun = 128;
+    private static final int pageSize = Processor.pageSize;
+}
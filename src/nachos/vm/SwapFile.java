@@ -0,0 +1,137 @@
+package nachos.vm;
+
+import java.util.LinkedList;
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+/**
+ * A file of page-sized slots holding pages that have been evicted from
+ * physical memory. A slot can be shared by processes forked from one
+ * another, so each slot is reference counted.
+ */
+public class SwapFile {
+    /**
+     * Create the swap file with the specified name on the kernel's file
+     * system.
+     *
+     * @param	name	the name of the swap file.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	// swapped pages are already evicted from memory, so don't cache them
+	fileSystem = ThreadedKernel.fileSystem;
+	if (fileSystem instanceof MountFileSystem)
+	    fileSystem = ((MountFileSystem) fileSystem).getFileSystem();
+	if (fileSystem instanceof BufferCache)
+	    fileSystem = ((BufferCache) fileSystem).getFileSystem();
+
+	file = fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "unable to create swap file");
+    }
+
+    /**
+     * Allocate a free slot, with a reference count of one.
+     *
+     * @return	the slot number.
+     */
+    public int allocate() {
+	int slot;
+	if (!freeSlots.isEmpty()) {
+	    slot = freeSlots.removeFirst();
+	}
+	else {
+	    slot = numSlots++;
+	    if (slot == refCounts.length) {
+		int[] grown = new int[refCounts.length*2];
+		System.arraycopy(refCounts, 0, grown, 0, refCounts.length);
+		refCounts = grown;
+	    }
+	}
+
+	refCounts[slot] = 1;
+	return slot;
+    }
+
+    /**
+     * Add a reference to an allocated slot.
+     */
+    public void retain(int slot) {
+	Lib.assertTrue(refCounts[slot] > 0);
+	refCounts[slot]++;
+    }
+
+    /**
+     * Drop a reference to a slot, freeing it once nothing refers to it.
+     *
+     * @return	<tt>true</tt> if the slot was freed.
+     */
+    public boolean release(int slot) {
+	Lib.assertTrue(refCounts[slot] > 0);
+	if (--refCounts[slot] > 0)
+	    return false;
+
+	freeSlots.add(slot);
+	return true;
+    }
+
+    /**
+     * Copy a page into a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	data	the buffer holding the page.
+     * @param	offset	the offset of the page in <i>data</i>.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean write(int slot, byte[] data, int offset) {
+	Machine.stats().numSwapWrites++;
+	return file.write(slot*pageSize, data, offset, pageSize) == pageSize;
+    }
+
+    /**
+     * Copy a slot into a page.
+     *
+     * @param	slot	the slot to read.
+     * @param	data	the buffer to hold the page.
+     * @param	offset	the offset of the page in <i>data</i>.
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    public boolean read(int slot, byte[] data, int offset) {
+	Machine.stats().numSwapReads++;
+	return file.read(slot*pageSize, data, offset, pageSize) == pageSize;
+    }
+
+    /**
+     * Copy a run of consecutive slots into a buffer with a single read.
+     *
+     * @param	slot	the first slot to read.
+     * @param	count	the number of slots to read.
+     * @param	data	the buffer to hold the pages.
+     * @param	offset	the offset of the first page in <i>data</i>.
+     * @return	<tt>true</tt> if every page was read.
+     */
+    public boolean read(int slot, int count, byte[] data, int offset) {
+	Machine.stats().numSwapReads += count;
+	Machine.stats().numSwapRunReads++;
+	return file.read(slot*pageSize, data, offset, count*pageSize) ==
+	    count*pageSize;
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+	file.close();
+	fileSystem.remove(name);
+    }
+
+    private String name;
+    private FileSystem fileSystem;
+    private OpenFile file;
+    private int numSlots = 0;
+    private int[] refCounts = new int[16];
+    private LinkedList<Integer> freeSlots = new LinkedList<Integer>();
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -1,5 +1,6 @@
 package nachos.vm;
 
+import java.util.HashMap;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -21,6 +22,39 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	maxFaultAround = Config.getInteger("VMKernel.faultAroundPages",
+					   maxFaultAround);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	ipt = new InvertedPageTable(numPhysPages);
+	vmLock = new Lock();
+	swap = new SwapCache("swapfile",
+			     Config.getInteger("VMKernel.swapCacheBytes",
+					       numPhysPages*pageSize/4));
+
+	workingSetWindow = Config.getInteger("VMKernel.workingSetWindow",
+					     workingSetWindow);
+
+	// sample working sets just before the alarm gets the interrupt
+	Machine.timer().setInterruptHandler(new Runnable() {
+		public void run() {
+		    UserProcess process = currentProcess();
+		    if (process instanceof VMProcess)
+			((VMProcess) process).sampleWorkingSet();
+
+		    alarm.timerInterrupt();
+		}
+	    });
+
+	// merging identical pages is off unless asked for
+	int framesPerScan = Config.getInteger("VMKernel.mergeFramesPerScan", 0);
+	if (framesPerScan > 0) {
+	    PageMerger merger =
+		new PageMerger(framesPerScan,
+			       Config.getInteger("VMKernel.mergeInterval", 5000));
+	    new KThread(merger).setName("page merger").fork();
+	}
     }
 
     /**
@@ -41,11 +75,146 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Note that another process is demand-paging from <i>coff</i>.
+     */
+    public static void retainCoff(Coff coff) {
+	Integer count = coffRefCounts.get(coff);
+	coffRefCounts.put(coff, (count == null) ? 1 : count+1);
+    }
+
+    /**
+     * Note that a process no longer pages from <i>coff</i>, closing the
+     * executable once no process does.
+     */
+    public static void releaseCoff(Coff coff) {
+	int count = coffRefCounts.get(coff) - 1;
+
+	if (count == 0) {
+	    coffRefCounts.remove(coff);
+	    coff.close();
+	}
+	else {
+	    coffRefCounts.put(coff, count);
+	}
+    }
+
+    /**
+     * Allocate a physical page, evicting a resident page if none is free.
+     * The caller must hold <tt>vmLock</tt>.
+     *
+     * @return	the physical page number, or -1 if every frame is pinned.
+     */
+    public static int allocateFrame() {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	if (numFreeFrames() == 0 && !evictFrame())
+	    return -1;
+
+	int[] frames = allocateFrames(1);
+	return (frames == null) ? -1 : frames[0];
+    }
+
+    /**
+     * Allocate a physical page filled with zeros, evicting a resident page
+     * if none is free. The caller must hold <tt>vmLock</tt>.
+     *
+     * @return	the physical page number, or -1 if every frame is pinned.
+     */
+    public static int allocateZeroedFrame() {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	if (numFreeFrames() == 0 && !evictFrame())
+	    return -1;
+
+	return UserKernel.allocateZeroedFrame();
+    }
+
+    /**
+     * Choose a frame with the clock algorithm and free it. Every process
+     * sharing the frame loses its mapping, and if any of them dirtied it the
+     * page is written to one swap slot that they all share.
+     *
+     * @return	<tt>true</tt> if a frame was freed.
+     */
+    private static boolean evictFrame() {
+	// the running process's used and dirty bits are still in the TLB
+	UserProcess current = currentProcess();
+	if (current != null)
+	    ((VMProcess) current).syncTLB();
+
+	int ppn = ipt.chooseVictim();
+	if (ppn == -1)
+	    return false;
+
+	ipt.pin(ppn);
+
+	int numMappings = 0;
+	boolean dirty = false;
+	for (InvertedPageTable.Mapping m = ipt.getMappings(ppn); m != null;
+	     m = m.nextInFrame) {
+	    numMappings++;
+	    dirty |= m.hasFlag(RadixPageTable.pteDirty);
+	}
+
+	int slot = -1;
+	if (dirty) {
+	    slot = swap.allocate();
+	    for (int i=1; i<numMappings; i++)
+		swap.retain(slot);
+	}
+
+	// unmap before writing, since the write lets other threads run
+	InvertedPageTable.Mapping m;
+	while ((m = ipt.getMappings(ppn)) != null)
+	    m.process.pageOut(m, slot);
+
+	if (dirty)
+	    Lib.assertTrue(swap.write(slot, ppn), "swap write failed");
+
+	ipt.unpin(ppn);
+
+	for (int i=0; i<numMappings; i++)
+	    releaseFrame(ppn);
+
+	Machine.stats().numEvictions++;
+	Lib.debug(dbgVM, "\tevicted frame " + ppn
+		  + (dirty ? " to swap slot " + slot : ""));
+	return true;
+    }
+
+    /** The resident pages of every process, indexed by frame. */
+    public static InvertedPageTable ipt;
+    /** Serializes faults, evictions and changes to shared frames. */
+    public static Lock vmLock;
+    /** Where evicted dirty pages are kept. */
+    public static SwapCache swap;
+
+    /**
+     * Largest number of pages to map past a faulting page, set by the
+     * <tt>nachos.conf</tt> key <tt>VMKernel.faultAroundPages</tt>.
+     */
+    static int maxFaultAround = 8;
+
+    /**
+     * Number of timer samples a page stays in a working set after its last
+     * reference, set by the <tt>nachos.conf</tt> key
+     * <tt>VMKernel.workingSetWindow</tt>.
+     */
+    static int workingSetWindow = 4;
+
+    /** Number of processes demand-paging from each open executable. */
+    private static HashMap<Coff, Integer> coffRefCounts =
+	new HashMap<Coff, Integer>();
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
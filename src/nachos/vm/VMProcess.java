@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.util.HashMap;
+import java.util.Iterator;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -7,6 +9,16 @@ import nachos.vm.*;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * A <tt>VMProcess</tt> keeps a two-level <tt>RadixPageTable</tt> in place of
+ * the flat page table, and TLB misses are refilled by walking it. Without a
+ * TLB, the processor walks the packed table itself. Its
+ * resident pages are also listed in the kernel's inverted page table, and a
+ * page that is not resident comes from the swap file if it has been paged
+ * out, and otherwise from the executable or as a page of zeros. Since the
+ * table only covers pages in use, the executable's sections may be spread
+ * across the address space with holes between them.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -22,6 +34,15 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	syncTLB();
+
+	// remember our translations in case another process displaces them
+	Processor processor = Machine.processor();
+	for (int i=0; i<tlbSize; i++) {
+	    tlbShadow[i] = (tlbOwners[i] == this) ?
+		processor.readTLBEntry(i) : null;
+	}
     }
 
     /**
@@ -29,7 +50,65 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	if (radixTable == null)
+	    return;
+
+	// if our working set was paged out while we were away, bring it back
+	// in one batch at the first page fault
+	pagesToPrepage += pagesLostWhileAway;
+	pagesLostWhileAway = 0;
+
+	Processor processor = Machine.processor();
+
+	if (!processor.hasTLB())
+	    processor.setPackedPageTable(radixTable.getDirectory());
+
+	// The TLB has no address space identifiers, so each entry is tagged
+	// in software with the process that loaded it. Entries that are still
+	// ours are kept, ones another process displaced come back from our
+	// shadow copy, and anything that no longer matches the page table (or
+	// that belongs to someone else) is thrown away.
+	for (int i=0; i<tlbSize; i++) {
+	    boolean owned = (tlbOwners[i] == this);
+	    TranslationEntry entry =
+		owned ? processor.readTLBEntry(i) : tlbShadow[i];
+	    TranslationEntry current = (entry == null) ? null :
+		stillMaps(entry);
+
+	    if (current != null) {
+		if (owned) {
+		    Machine.stats().numTLBEntriesKept++;
+		}
+		else {
+		    processor.writeTLBEntry(i, current);
+		    Machine.stats().numTLBEntriesRestored++;
+		}
+	    }
+	    else {
+		processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+
+	    tlbOwners[i] = this;
+	    tlbShadow[i] = null;
+	}
+    }
+
+    /**
+     * Test whether a saved TLB entry still agrees with our page table.
+     *
+     * @return	the page's current translation if it does, or
+     *		<tt>null</tt>.
+     */
+    private TranslationEntry stillMaps(TranslationEntry entry) {
+	if (!entry.valid)
+	    return null;
+
+	TranslationEntry current = radixTable.getTranslation(entry.vpn);
+	if (current == null || current.ppn != entry.ppn ||
+	    current.readOnly != entry.readOnly)
+	    return null;
+
+	return current;
     }
 
     /**
@@ -39,15 +118,721 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	// pages are mapped by our radix table as they are faulted in
+	pageTable = null;
+	radixTable = new RadixPageTable();
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgVM, "\tdemand-paging " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+	}
+
+	VMKernel.retainCoff(coff);
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel.vmLock.acquire();
+
+	// our frames are about to be reused, so drop our translations
+	Processor processor = Machine.processor();
+	for (int i=0; i<tlbSize; i++) {
+	    if (tlbOwners[i] == this) {
+		processor.writeTLBEntry(i, new TranslationEntry());
+		tlbOwners[i] = null;
+	    }
+	}
+
+	Lib.debug(dbgVM, "\tprocess " + pid + " working set "
+		  + getWorkingSetSize() + " pages, prepaged " + numPrepagedPages
+		  + ", hit rate " + getPrepageHitRate() + ", page table leaves "
+		  + radixTable.getNumLeaves());
+
+	Stats stats = Machine.stats();
+	int workingSetSize = getWorkingSetSize();
+	stats.numWorkingSets++;
+	stats.totalWorkingSetPages += workingSetSize;
+	stats.maxWorkingSetPages = Math.max(stats.maxWorkingSetPages,
+					    workingSetSize);
+	if (numPrepagedPages > 0) {
+	    stats.numProcessesPrepaged++;
+	    stats.totalPrepageHitRate += getPrepageHitRate();
+	}
+
+	for (int vpn = radixTable.nextPage(0); vpn != -1;
+	     vpn = radixTable.nextPage(vpn+1)) {
+	    InvertedPageTable.Mapping m = VMKernel.ipt.find(this, vpn);
+	    if (m != null) {
+		int ppn = m.getPPN();
+		VMKernel.ipt.unmap(m);
+		UserKernel.releaseFrame(ppn);
+	    }
+
+	    int slot = radixTable.setSwapSlot(vpn, -1);
+	    if (slot != -1)
+		VMKernel.swap.release(slot);
+	}
+	radixTable = null;
+
+	// a forked process may still be paging from the same executable
+	if (coff != null) {
+	    VMKernel.releaseCoff(coff);
+	    coff = null;
+	}
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Share the parent's resident pages copy-on-write, inherit its swapped
+     * pages, and keep demand-paging the pages it has not touched yet from the
+     * same executable.
+     */
+    protected boolean forkAddressSpace(UserProcess parent) {
+	VMProcess vmParent = (VMProcess) parent;
+
+	VMKernel.vmLock.acquire();
+
+	// the parent is running, so its TLB holds the latest used/dirty bits
+	vmParent.syncTLB();
+
+	numPages = vmParent.numPages;
+	radixTable = new RadixPageTable();
+
+	RadixPageTable parentTable = vmParent.radixTable;
+	for (int vpn = parentTable.nextPage(0); vpn != -1;
+	     vpn = parentTable.nextPage(vpn+1)) {
+	    int slot = parentTable.getSwapSlot(vpn);
+	    if (slot != -1) {
+		radixTable.setSwapSlot(vpn, slot);
+		VMKernel.swap.retain(slot);
+	    }
+
+	    InvertedPageTable.Mapping m = VMKernel.ipt.find(vmParent, vpn);
+	    if (m == null)
+		continue;
+
+	    // writable pages are shared read-only until someone writes
+	    if (!m.hasFlag(RadixPageTable.pteReadOnly) ||
+		m.hasFlag(RadixPageTable.pteCopyOnWrite)) {
+		m.setFlag(RadixPageTable.pteReadOnly, true);
+		m.setFlag(RadixPageTable.pteCopyOnWrite, true);
+	    }
+
+	    int ppn = m.getPPN();
+	    VMKernel.ipt.map(this, vpn, ppn, m.getFlags() &
+			     (RadixPageTable.pteReadOnly |
+			      RadixPageTable.pteCopyOnWrite |
+			      RadixPageTable.pteDirty));
+	    UserKernel.shareFrame(ppn);
+	}
+
+	coff = vmParent.coff;
+	VMKernel.retainCoff(coff);
+
+	// the parent's writable pages just became read-only
+	vmParent.invalidateTLB();
+
+	VMKernel.vmLock.release();
+	return true;
+    }
+
+    /**
+     * Give a copy-on-write page a private frame so that it can be written.
+     * The page may have been evicted while we waited for the lock, or every
+     * frame may be pinned; then nothing is done, and the caller retries the
+     * access, faulting the page back in or finding a frame free by then.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	VMKernel.vmLock.acquire();
+
+	InvertedPageTable ipt = VMKernel.ipt;
+	InvertedPageTable.Mapping m = ipt.find(this, vpn);
+	if (m == null) {
+	    VMKernel.vmLock.release();
+	    return isMapped(vpn);
+	}
+	if (!m.hasFlag(RadixPageTable.pteCopyOnWrite)) {
+	    VMKernel.vmLock.release();
+	    return false;
+	}
+
+	int ppn = m.getPPN();
+	if (UserKernel.frameRefCount(ppn) > 1) {
+	    // keep the shared frame in place while we find another
+	    ipt.pin(ppn);
+	    int newPPN = VMKernel.allocateFrame();
+	    ipt.unpin(ppn);
+
+	    if (newPPN == -1) {
+		// let the threads holding frames pinned finish with them
+		Lib.debug(dbgVM, "\tno frame to break copy-on-write yet");
+		VMKernel.vmLock.release();
+		KThread.yield();
+		return true;
+	    }
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, ppn*pageSize,
+			     memory, newPPN*pageSize, pageSize);
+
+	    int flags = m.getFlags() &
+		(RadixPageTable.pteUsed | RadixPageTable.pteDirty);
+	    ipt.unmap(m);
+	    UserKernel.releaseFrame(ppn);
+	    ipt.map(this, vpn, newPPN, flags);
+	}
+	else {
+	    m.setFlag(RadixPageTable.pteReadOnly, false);
+	    m.setFlag(RadixPageTable.pteCopyOnWrite, false);
+	}
+
+	updateTLB(vpn);
+
+	VMKernel.vmLock.release();
+	return true;
+    }
+
+    /**
+     * Return the translation for <i>vpn</i>, faulting the page in if it is
+     * not resident. No other thread can run between the final lookup and the
+     * return, so the translation is current when the caller uses it.
+     */
+    protected TranslationEntry lookupPage(int vpn) {
+	if (radixTable == null || vpn < 0 || vpn >= numPages)
+	    return null;
+
+	while (!radixTable.isResident(vpn)) {
+	    if (!isMapped(vpn))
+		return null;
+
+	    VMKernel.vmLock.acquire();
+	    boolean resident = radixTable.isResident(vpn) ||
+		handlePageFault(vpn);
+	    VMKernel.vmLock.release();
+
+	    if (!resident)
+		return null;
+	}
+
+	if (radixTable.getFlag(vpn, RadixPageTable.ptePrefetched)) {
+	    prefetchHit(vpn);
+	}
+	else if (radixTable.getFlag(vpn, RadixPageTable.ptePrepaged)) {
+	    radixTable.setFlag(vpn, RadixPageTable.ptePrepaged, false);
+	    numPrepageHits++;
+	    Machine.stats().numPrepageHits++;
+	}
+
+	return radixTable.getTranslation(vpn);
+    }
+
+    /**
+     * Note the first touch of a page brought in by fault-around.
+     */
+    private void prefetchHit(int vpn) {
+	radixTable.setFlag(vpn, RadixPageTable.ptePrefetched, false);
+	Machine.stats().numPrefetchHits++;
+	if (vpn == streamVPN+1)
+	    streamVPN = vpn;
+    }
+
+    /**
+     * Set the used and dirty bits of a page the kernel wrote, since
+     * <tt>lookupPage()</tt> only returns a copy of its translation.
+     */
+    protected void pageWritten(int vpn, TranslationEntry entry) {
+	radixTable.setFlag(vpn, RadixPageTable.pteUsed, true);
+	radixTable.setFlag(vpn, RadixPageTable.pteDirty, true);
+    }
+
+    /**
+     * Handle a major fault on <i>vpn</i>: bring the page in, then map up to
+     * <tt>faultAround</tt> of the following executable pages as well. The
+     * window doubles while faults keep arriving just past the pages already
+     * touched, and halves when they jump elsewhere.
+     *
+     * @param	vpn	the virtual page that faulted.
+     * @return	<tt>true</tt> if the page is now resident.
+     */
+    private boolean handlePageFault(int vpn) {
+	// paging in can switch us out and back in, so check this first
+	int prepage = pagesToPrepage;
+	pagesToPrepage = 0;
+
+	InvertedPageTable.Mapping faulted = pageIn(vpn);
+	if (faulted == null)
+	    return false;
+
+	Machine.stats().numMajorFaults++;
+
+	if (prepage > 0) {
+	    // don't let making room for the batch evict the page we need
+	    VMKernel.ipt.pin(faulted.getPPN());
+	    prepageWorkingSet(prepage);
+	    VMKernel.ipt.unpin(faulted.getPPN());
+	}
+
+	if (vpn == streamVPN+1)
+	    faultAround = Math.min(faultAround*2, VMKernel.maxFaultAround);
+	else
+	    faultAround = Math.max(faultAround/2,
+				   Math.min(1, VMKernel.maxFaultAround));
+	streamVPN = vpn;
+
+	for (int i=1; i<=faultAround && vpn+i<numPages; i++) {
+	    int neighbor = vpn+i;
+
+	    // only pages that are cheap to map: already-free frames, and
+	    // contents that come straight from the executable
+	    if (radixTable.isResident(neighbor))
+		continue;
+	    if (findSection(neighbor) == null ||
+		radixTable.getSwapSlot(neighbor) != -1 ||
+		UserKernel.numFreeFrames() <= prefetchReserve)
+		break;
+
+	    InvertedPageTable.Mapping m = pageIn(neighbor);
+	    if (m == null)
+		break;
+
+	    m.setFlag(RadixPageTable.ptePrefetched, true);
+	    Machine.stats().numPrefetchedPages++;
+	}
+
+	Lib.debug(dbgVM, "\tpage fault on vpn " + vpn + ", fault-around "
+		  + faultAround);
+	return true;
+    }
+
+    /**
+     * Allocate a frame for <i>vpn</i> and fill it from the swap file, from
+     * the executable, or with zeros for stack, argument and bss pages. The
+     * caller must hold <tt>VMKernel.vmLock</tt>.
+     *
+     * @param	vpn	the non-resident virtual page.
+     * @return	the page's new mapping, or <tt>null</tt> if no frame could be
+     *		found.
+     */
+    private InvertedPageTable.Mapping pageIn(int vpn) {
+	CoffSection section = findSection(vpn);
+	int slot = radixTable.getSwapSlot(vpn);
+
+	// stack, argument and bss pages start out as zeros
+	boolean zeroFill = (slot == -1 &&
+			    (section == null || !section.isInitialzed()));
+
+	int ppn = zeroFill ? VMKernel.allocateZeroedFrame() :
+	    VMKernel.allocateFrame();
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno frame for vpn " + vpn);
+	    return null;
+	}
+
+	if (slot != -1)
+	    Lib.assertTrue(VMKernel.swap.read(slot, ppn));
+	else if (!zeroFill)
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+
+	return mapPage(vpn, ppn, 0);
+    }
+
+    /**
+     * Map a page that has just been filled into a frame.
+     *
+     * @param	flags	any <tt>RadixPageTable.pteZZZ</tt> flags to set, besides
+     *			read-only for pages of read-only sections.
+     */
+    private InvertedPageTable.Mapping mapPage(int vpn, int ppn, int flags) {
+	CoffSection section = findSection(vpn);
+	if (section != null && section.isReadOnly())
+	    flags |= RadixPageTable.pteReadOnly;
+
+	return VMKernel.ipt.map(this, vpn, ppn, flags);
+    }
+
+    /**
+     * Bring back the pages of our working set that were paged out to swap,
+     * reading them in slot order so that consecutive slots are read
+     * together. Free frames are used first; beyond those, we only take back
+     * as many frames as other processes took from us while we were away.
+     * Nothing is prepaged for a working set larger than half of memory. The
+     * pages are marked as used so that the clock does not take them straight
+     * back. The caller must hold <tt>VMKernel.vmLock</tt>.
+     *
+     * @param	pagesLost	the number of our pages evicted while we were
+     *				away.
+     */
+    private void prepageWorkingSet(int pagesLost) {
+	// a working set that can't fit would only push itself back out
+	int maxPages = VMKernel.ipt.getNumFrames() / 2;
+	if (getWorkingSetSize() > maxPages)
+	    return;
+
+	maxPages = Math.min(Math.max(UserKernel.numFreeFrames() -
+				     prefetchReserve, pagesLost), maxPages);
+	if (maxPages <= 0)
+	    return;
+
+	int[] vpns = new int[maxPages];
+	int count = 0;
+	for (int vpn : workingSet.keySet()) {
+	    if (count == maxPages)
+		break;
+	    if (inWorkingSet(vpn) && radixTable.getSwapSlot(vpn) != -1 &&
+		!radixTable.isResident(vpn))
+		vpns[count++] = vpn;
+	}
+
+	if (count == 0)
+	    return;
+
+	int[] ppns = new int[count];
+	for (int i=0; i<count; i++) {
+	    if ((ppns[i] = VMKernel.allocateFrame()) == -1) {
+		count = i;
+		break;
+	    }
+	}
+
+	// making room can't have evicted any of these pages, since none of
+	// them is resident, so their slots are still the ones to read
+	int[] slots = new int[count];
+	for (int i=0; i<count; i++)
+	    slots[i] = radixTable.getSwapSlot(vpns[i]);
+
+	Lib.assertTrue(VMKernel.swap.read(slots, ppns, count));
+
+	for (int i=0; i<count; i++) {
+	    mapPage(vpns[i], ppns[i],
+		    RadixPageTable.pteUsed | RadixPageTable.ptePrepaged);
+	}
+
+	numPrepagedPages += count;
+	Machine.stats().numPrepagedPages += count;
+	Machine.stats().numPrepageBatches++;
+
+	Lib.debug(dbgVM, "\tprepaged " + count + " working set pages");
+    }
+
+    /**
+     * Close the current working set sample. References are recorded
+     * whenever the used bits of our TLB entries are collected, so this
+     * collects the latest ones and starts a new sample. Called on each timer
+     * interrupt while this process is running.
+     *
+     * <p>
+     * A sample in which we referenced nothing (because we spent it waiting
+     * in the kernel) does not count, so the window measures the time we
+     * actually spend running user code.
+     */
+    void sampleWorkingSet() {
+	if (radixTable == null)
+	    return;
+
+	syncTLB();
+	if (tlbSize == 0)
+	    sampleUsedPages();
+	if (!sampleReferenced)
+	    return;
+
+	sampleReferenced = false;
+	numSamples++;
+
+	if (numSamples % VMKernel.workingSetWindow == 0) {
+	    Iterator<Integer> it = workingSet.keySet().iterator();
+	    while (it.hasNext()) {
+		if (!inWorkingSet(it.next()))
+		    it.remove();
+	    }
+	}
+    }
+
+    /**
+     * Record the pages the processor has marked used in our packed page
+     * table. The bits are left for the clock algorithm to clear, so a page
+     * stays referenced until the clock hand passes it. Prefetched pages are
+     * touched without faulting, so their hits are noted here too.
+     */
+    private void sampleUsedPages() {
+	for (int vpn=radixTable.nextPage(0); vpn!=-1;
+	     vpn=radixTable.nextPage(vpn+1)) {
+	    if (radixTable.getFlag(vpn, RadixPageTable.pteUsed)) {
+		workingSet.put(vpn, numSamples);
+		sampleReferenced = true;
+
+		if (radixTable.getFlag(vpn, RadixPageTable.ptePrefetched))
+		    prefetchHit(vpn);
+	    }
+	}
+    }
+
+    /**
+     * Test whether <i>vpn</i> was referenced within the last
+     * <tt>VMKernel.workingSetWindow</tt> samples.
+     */
+    private boolean inWorkingSet(int vpn) {
+	Integer lastSample = workingSet.get(vpn);
+	return lastSample != null &&
+	    lastSample > numSamples - VMKernel.workingSetWindow;
+    }
+
+    /**
+     * Return the number of pages in this process's working set, as of the
+     * last sample.
+     */
+    public int getWorkingSetSize() {
+	int size = 0;
+	for (int vpn : workingSet.keySet()) {
+	    if (inWorkingSet(vpn))
+		size++;
+	}
+
+	return size;
+    }
+
+    /**
+     * Return the fraction of the pages prepaged for this process that it
+     * went on to use.
+     */
+    public double getPrepageHitRate() {
+	return (numPrepagedPages == 0) ? 0.0 :
+	    (double) numPrepageHits / numPrepagedPages;
+    }
+
+    /**
+     * Remove one of this process's pages from memory, because its frame is
+     * being replaced. The caller must hold <tt>VMKernel.vmLock</tt>.
+     *
+     * @param	m	the page's mapping.
+     * @param	slot	the swap slot now holding the page's contents, or -1
+     *			if the page was clean and can be brought back from
+     *			where it came from.
+     */
+    void pageOut(InvertedPageTable.Mapping m, int slot) {
+	int vpn = m.vpn;
+
+	VMKernel.ipt.unmap(m);
+	updateTLB(vpn);
+
+	if (this != VMKernel.currentProcess())
+	    pagesLostWhileAway++;
+
+	if (slot != -1) {
+	    int oldSlot = radixTable.setSwapSlot(vpn, slot);
+	    if (oldSlot != -1)
+		VMKernel.swap.release(oldSlot);
+	}
+    }
+
+    /**
+     * Pin the frame holding a page while the kernel copies to or from it,
+     * unless we already hold a quarter of memory pinned, so that there are
+     * always frames left to page into. The page may have been replaced
+     * since <tt>lookupPage()</tt> returned <i>entry</i>, so check that it is
+     * still in the same frame, with interrupts disabled so that nothing can
+     * replace it between the check and the pin.
+     */
+    protected int pinPage(int vpn, TranslationEntry entry) {
+	pinLock.acquire();
+
+	int result;
+	boolean intStatus = Machine.interrupt().disable();
+	if (!radixTable.isResident(vpn) ||
+	    radixTable.getPPN(vpn) != entry.ppn ||
+	    radixTable.getFlag(vpn, RadixPageTable.pteReadOnly) !=
+	    entry.readOnly) {
+	    result = pinStale;
+	}
+	else if (numPinnedPages >= maxPinnedPages()) {
+	    result = pinLimit;
+	}
+	else {
+	    VMKernel.ipt.pin(entry.ppn);
+	    numPinnedPages++;
+	    result = pinOK;
+	}
+	Machine.interrupt().restore(intStatus);
+
+	pinLock.release();
+	return result;
+    }
+
+    /**
+     * Release a frame pinned by <tt>pinPage()</tt>. A pinned page can't be
+     * paged out, so it is still in the same frame.
+     */
+    protected void unpinPage(int vpn) {
+	pinLock.acquire();
+	VMKernel.ipt.unpin(radixTable.getPPN(vpn));
+	numPinnedPages--;
+	pinsReleased.wake();
+	pinLock.release();
+    }
+
+    /**
+     * Wait until we hold fewer pinned pages than we may, for instance while
+     * an asynchronous read holds them during file I/O.
+     */
+    protected void waitToPin() {
+	pinLock.acquire();
+	while (numPinnedPages >= maxPinnedPages())
+	    pinsReleased.sleep();
+	pinLock.release();
+    }
+
+    private int maxPinnedPages() {
+	return Math.max(1, VMKernel.ipt.getNumFrames()/4);
+    }
+
+    /**
+     * Test whether <i>vpn</i> is part of this address space: a page of one of
+     * the executable's sections, of the stack, or of the arguments.
+     */
+    private boolean isMapped(int vpn) {
+	return vpn >= numPages - stackPages - 1 && vpn < numPages ||
+	    findSection(vpn) != null;
+    }
+
+    /**
+     * Our page table only covers the pages in use, so sections may be
+     * placed anywhere in the address space.
+     */
+    protected boolean allowsSparseSections() {
+	return true;
+    }
+
+    /**
+     * Return the executable section containing <i>vpn</i>, or <tt>null</tt>
+     * if the page belongs to the stack or arguments.
+     */
+    private CoffSection findSection(int vpn) {
+	if (coff == null)
+	    return null;
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return section;
+	}
+
+	return null;
+    }
+
+    /**
+     * Handle a TLB miss by walking our page table, faulting the page in if
+     * it is not resident, and loading its translation into the TLB.
+     *
+     * @param	vpn	the virtual page that missed.
+     * @return	<tt>true</tt> if the page is part of this address space.
+     */
+    private boolean handleTLBMiss(int vpn) {
+	TranslationEntry entry = lookupPage(vpn);
+	if (entry == null)
+	    return false;
+
+	Processor processor = Machine.processor();
+
+	int victim = -1;
+	for (int i=0; i<tlbSize; i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		victim = i;
+		break;
+	    }
+	}
+	if (victim == -1) {
+	    victim = nextTLBVictim;
+	    nextTLBVictim = (nextTLBVictim+1) % tlbSize;
+	    syncTLBEntry(victim);
+	}
+
+	processor.writeTLBEntry(victim, entry);
+	tlbOwners[victim] = this;
+	return true;
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back into the inverted page
+     * table, and clear them in the TLB so that they can be sampled again. A
+     * used page is also recorded in the current working set sample.
+     */
+    private void syncTLBEntry(int number) {
+	Processor processor = Machine.processor();
+	TranslationEntry tlbEntry = processor.readTLBEntry(number);
+
+	if (!tlbEntry.valid || !(tlbEntry.used || tlbEntry.dirty))
+	    return;
+
+	int vpn = tlbEntry.vpn;
+	if (radixTable.isResident(vpn) &&
+	    radixTable.getPPN(vpn) == tlbEntry.ppn) {
+	    if (tlbEntry.used)
+		radixTable.setFlag(vpn, RadixPageTable.pteUsed, true);
+	    if (tlbEntry.dirty)
+		radixTable.setFlag(vpn, RadixPageTable.pteDirty, true);
+	}
+
+	if (tlbEntry.used) {
+	    workingSet.put(tlbEntry.vpn, numSamples);
+	    sampleReferenced = true;
+	}
+
+	tlbEntry.used = tlbEntry.dirty = false;
+	processor.writeTLBEntry(number, tlbEntry);
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry this process loaded
+     * back into the inverted page table.
+     */
+    void syncTLB() {
+	if (radixTable == null)
+	    return;
+
+	for (int i=0; i<tlbSize; i++) {
+	    if (tlbOwners[i] == this)
+		syncTLBEntry(i);
+	}
+    }
+
+    /**
+     * Invalidate every TLB entry.
+     */
+    private void invalidateTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<tlbSize; i++) {
+	    processor.writeTLBEntry(i, new TranslationEntry());
+	    tlbOwners[i] = this;
+	}
+    }
+
+    /**
+     * Reload any TLB entry this process holds for <i>vpn</i> from the
+     * inverted page table, invalidating it if the page is no longer
+     * resident.
+     */
+    private void updateTLB(int vpn) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<tlbSize; i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbOwners[i] == this && tlbEntry.valid &&
+		tlbEntry.vpn == vpn) {
+		syncTLBEntry(i);
+
+		TranslationEntry entry = radixTable.getTranslation(vpn);
+		processor.writeTLBEntry(i, (entry != null) ? entry :
+					new TranslationEntry());
+	    }
+	}
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +846,70 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionPageFault:
+	    // without a TLB the processor reads our packed table itself, so
+	    // the page only has to be made resident
+	    if (lookupPage(Processor.pageFromAddress(
+			processor.readRegister(Processor.regBadVAddr))) == null)
+		super.handleException(cause);
+	    break;
+
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(Processor.pageFromAddress(
+				processor.readRegister(Processor.regBadVAddr))))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Our resident pages and the swap slots of our paged-out pages, or
+     * <tt>null</tt> once the address space has been released.
+     */
+    RadixPageTable radixTable = null;
+    /** The last sample in which each recently used page was referenced. */
+    private HashMap<Integer, Integer> workingSet =
+	new HashMap<Integer, Integer>();
+    /** Number of timer samples taken while we were running. */
+    private int numSamples = 0;
+    /** Set once we reference a page during the current sample. */
+    private boolean sampleReferenced = false;
+    /** Pages evicted by other processes since we last ran. */
+    private int pagesLostWhileAway = 0;
+    /** Pages lost while we were away that the next page fault brings back. */
+    private int pagesToPrepage = 0;
+    private int numPrepagedPages = 0;
+    private int numPrepageHits = 0;
+    /** Number of our pages pinned for the kernel to copy. */
+    private int numPinnedPages = 0;
+    private Lock pinLock = new Lock();
+    /** Signaled each time one of our pinned pages is released. */
+    private Condition2 pinsReleased = new Condition2(pinLock);
+    /** How many pages past a fault to map, adapted per fault. */
+    private int faultAround = 1;
+    /** The last page of the current run of sequential accesses. */
+    private int streamVPN = -2;
+
+    /** Number of TLB entries, or 0 if the processor has no TLB. */
+    private static final int tlbSize = Machine.processor().hasTLB() ?
+	Machine.processor().getTLBSize() : 0;
+
+    /** Our TLB entries as of the last time we were switched out. */
+    private TranslationEntry[] tlbShadow =
+	new TranslationEntry[tlbSize];
+
+    /** The process that loaded each TLB entry. */
+    private static VMProcess[] tlbOwners =
+	new VMProcess[tlbSize];
+
+    /** Free frames fault-around leaves for demand faults. */
+    private static final int prefetchReserve = 2;
+    private static int nextTLBVictim = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';